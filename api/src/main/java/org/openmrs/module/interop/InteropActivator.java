@@ -9,15 +9,16 @@
  */
 package org.openmrs.module.interop;
 
-import java.lang.reflect.InvocationTargetException;
-
 import lombok.extern.slf4j.Slf4j;
 import org.openmrs.module.BaseModuleActivator;
 import org.openmrs.module.DaemonToken;
 import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.interop.api.InteropEventManager;
-import org.openmrs.module.interop.api.Publisher;
-import org.openmrs.module.interop.utils.ClassUtils;
+import org.openmrs.module.interop.api.delivery.DeadLetterRetryScheduler;
+import org.openmrs.module.interop.api.delivery.DeliveryCoordinator;
+import org.openmrs.module.interop.api.delivery.OutboxDrainer;
+import org.openmrs.module.interop.api.delivery.PublisherHealthMonitor;
+import org.openmrs.module.interop.api.delivery.PublisherRegistry;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
@@ -31,6 +32,21 @@ public class InteropActivator extends BaseModuleActivator implements Application
 	@Autowired
 	private InteropEventManager eventManager;
 	
+	@Autowired
+	private DeliveryCoordinator deliveryCoordinator;
+	
+	@Autowired
+	private OutboxDrainer outboxDrainer;
+	
+	@Autowired
+	private DeadLetterRetryScheduler deadLetterRetryScheduler;
+	
+	@Autowired
+	private PublisherRegistry publisherRegistry;
+	
+	@Autowired
+	private PublisherHealthMonitor publisherHealthMonitor;
+	
 	private static ApplicationContext applicationContext;
 	
 	private static DaemonToken daemonToken;
@@ -40,23 +56,15 @@ public class InteropActivator extends BaseModuleActivator implements Application
 	 */
 	public void started() {
 		applicationContext.getAutowireCapableBeanFactory().autowireBean(this);
+		this.publisherRegistry.refresh();
 		this.eventManager.setDaemonToken(daemonToken);
+		// start delivery first so events replayed from the last shutdown go through the outbox
+		this.deliveryCoordinator.start();
+		this.outboxDrainer.start(daemonToken);
+		this.deadLetterRetryScheduler.start(daemonToken);
 		this.eventManager.enableEvents();
-		
-		//Verify only enabled publishers configured connections
-		for (Class<? extends Publisher> publisher : ClassUtils.getPublishers()) {
-			try {
-				Publisher newInstancePublisher = publisher.getDeclaredConstructor().newInstance();
-				if (newInstancePublisher.isEnabled()) {
-					if (newInstancePublisher.verifyConnection()) {
-						log.debug("{} verification was successful", publisher.getSimpleName());
-					}
-				}
-			}
-			catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-				throw new RuntimeException(e);
-			}
-		}
+		// connections are verified in the background, an unreachable destination doesn't hold up startup
+		this.publisherHealthMonitor.start();
 		log.info("Started Interoperability Module");
 	}
 	
@@ -66,6 +74,11 @@ public class InteropActivator extends BaseModuleActivator implements Application
 	public void shutdown() {
 		this.eventManager.setDaemonToken(daemonToken);
 		this.eventManager.disableEvents();
+		this.outboxDrainer.shutdown();
+		this.deadLetterRetryScheduler.shutdown();
+		this.publisherHealthMonitor.shutdown();
+		this.deliveryCoordinator.shutdown();
+		this.publisherRegistry.close();
 		log.info("Shutdown Interoperability Module");
 	}
 	
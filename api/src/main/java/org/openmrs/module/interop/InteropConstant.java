@@ -103,4 +103,66 @@ public class InteropConstant {
 	
 	public static final String OAUTH_PASSWORD = "interop.shr.oauth.password";
 	
+	public static final String GP_DISPATCH_THREADS = "interop.dispatch.threads";
+	
+	public static final String GP_DISPATCH_QUEUE_SIZE = "interop.dispatch.queueSize";
+	
+	public static final String GP_DISPATCH_REJECTION_POLICY = "interop.dispatch.rejectionPolicy";
+	
+	public static final String GP_DISPATCH_COALESCE_WINDOW_MS = "interop.dispatch.coalesceWindowMs";
+	
+	public static final String GP_DISPATCH_PRIORITIES = "interop.dispatch.priorities";
+	
+	public static final String GP_DISPATCH_PRIORITY_WEIGHTS = "interop.dispatch.priorityWeights";
+	
+	public static final String GP_DISPATCH_BULKHEADS = "interop.dispatch.bulkheads";
+	
+	public static final String GP_ENCOUNTER_TYPES_PREFIX = "interop.encounterTypes.";
+	
+	public static final String GP_SHUTDOWN_DRAIN_TIMEOUT_MS = "interop.shutdown.drainTimeoutMs";
+	
+	public static final String GP_OUTBOX_ENABLED = "interop.outbox.enabled";
+	
+	public static final String GP_OUTBOX_BATCH_SIZE = "interop.outbox.batchSize";
+	
+	public static final String GP_OUTBOX_POLL_INTERVAL_MS = "interop.outbox.pollIntervalMs";
+	
+	public static final String GP_DELIVERY_EXECUTION_MODE = "interop.delivery.executionMode";
+	
+	public static final String GP_DELIVERY_THREADS = "interop.delivery.threads";
+	
+	public static final String GP_DELIVERY_TIMEOUT_MS = "interop.delivery.timeoutMs";
+	
+	public static final String GP_DELIVERY_TIMEOUTS = "interop.delivery.timeouts";
+	
+	public static final String GP_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "interop.circuitBreaker.failureThreshold";
+	
+	public static final String GP_CIRCUIT_BREAKER_OPEN_MS = "interop.circuitBreaker.openMs";
+	
+	public static final String GP_DELIVERY_RATE_LIMITS = "interop.delivery.rateLimits";
+	
+	public static final String GP_DELIVERY_RATE_LIMIT_MAX_WAIT_MS = "interop.delivery.rateLimitMaxWaitMs";
+	
+	public static final String GP_DELIVERY_ADAPTIVE_CONCURRENCY = "interop.delivery.adaptiveConcurrency";
+	
+	public static final String GP_ROUTING_RULES = "interop.routing.rules";
+	
+	public static final String GP_HEALTH_CHECK_INTERVAL_MS = "interop.healthCheck.intervalMs";
+	
+	public static final String GP_HEALTH_CHECK_TIMEOUT_MS = "interop.healthCheck.timeoutMs";
+	
+	public static final String GP_DEDUPLICATION_ENABLED = "interop.deduplication.enabled";
+	
+	public static final String GP_DEDUPLICATION_CACHE_SIZE = "interop.deduplication.cacheSize";
+	
+	public static final String GP_RETRY_INTERVAL_MS = "interop.retry.intervalMs";
+	
+	public static final String GP_RETRY_BATCH_SIZE = "interop.retry.batchSize";
+	
+	public static final String GP_RETRY_MAX_ATTEMPTS = "interop.retry.maxAttempts";
+	
+	public static final String GP_RETRY_BASE_DELAY_MS = "interop.retry.baseDelayMs";
+	
+	public static final String GP_RETRY_MAX_DELAY_MS = "interop.retry.maxDelayMs";
+	
 }
@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api;
+
+import java.util.Collections;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * Acknowledgement of a delivery by a {@link Publisher}, see
+ * {@link Publisher#publishAsync(ca.uhn.fhir.context.FhirContext, EncodedPayload, String, java.util.concurrent.Executor)}
+ */
+@Getter
+public final class DeliveryReceipt {
+	
+	private final String destination;
+	
+	private final String resourceType;
+	
+	private final String resourceId;
+	
+	private final long startedAt;
+	
+	private final long completedAt;
+	
+	/**
+	 * Details reported by the destination, e.g. the Kafka partition and offset
+	 */
+	private final Map<String, Object> metadata;
+	
+	public DeliveryReceipt(String destination, EncodedPayload payload, long startedAt) {
+		this(destination, payload, startedAt, Collections.emptyMap());
+	}
+	
+	public DeliveryReceipt(String destination, EncodedPayload payload, long startedAt, Map<String, Object> metadata) {
+		this.destination = destination;
+		this.resourceType = payload.getResourceType();
+		this.resourceId = payload.getResourceId();
+		this.startedAt = startedAt;
+		this.completedAt = System.currentTimeMillis();
+		this.metadata = Collections.unmodifiableMap(metadata);
+	}
+	
+	public long getLatencyMillis() {
+		return completedAt - startedAt;
+	}
+	
+	@Override
+	public String toString() {
+		return resourceType + "/" + resourceId + " delivered to " + destination + " in " + getLatencyMillis() + " ms "
+		        + metadata;
+	}
+}
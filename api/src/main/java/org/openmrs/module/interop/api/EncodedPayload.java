@@ -0,0 +1,89 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api;
+
+import javax.validation.constraints.NotNull;
+
+import java.nio.charset.StandardCharsets;
+
+import ca.uhn.fhir.context.FhirContext;
+import lombok.Getter;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+
+/**
+ * A FHIR resource encoded once, as compact JSON, and handed as is to every enabled publisher so the
+ * cost of serialization doesn't grow with the number of connectors
+ */
+@Getter
+public final class EncodedPayload {
+	
+	public static final String CONTENT_TYPE_FHIR_JSON = "application/fhir+json";
+	
+	private final byte[] bytes;
+	
+	private final String contentType;
+	
+	private final String resourceType;
+	
+	private final String resourceId;
+	
+	private final String text;
+	
+	private EncodedPayload(String text, String contentType, String resourceType, String resourceId) {
+		this.text = text;
+		this.bytes = text.getBytes(StandardCharsets.UTF_8);
+		this.contentType = contentType;
+		this.resourceType = resourceType;
+		this.resourceId = resourceId;
+	}
+	
+	/**
+	 * Encodes a resource as compact JSON
+	 *
+	 * @param context the FHIR context
+	 * @param resource the resource to encode
+	 * @return the encoded payload
+	 */
+	public static EncodedPayload encode(@NotNull FhirContext context, @NotNull IAnyResource resource) {
+		return new EncodedPayload(context.newJsonParser().encodeResourceToString(resource), CONTENT_TYPE_FHIR_JSON,
+		        resource.fhirType(), resource.getIdElement().getIdPart());
+	}
+	
+	/**
+	 * Wraps JSON that was encoded earlier, e.g. a stored outbox entry
+	 *
+	 * @param json the encoded resource
+	 * @param resourceType the FHIR resource type
+	 * @param resourceId the resource id
+	 * @return the encoded payload
+	 */
+	public static EncodedPayload of(@NotNull String json, String resourceType, String resourceId) {
+		return new EncodedPayload(json, CONTENT_TYPE_FHIR_JSON, resourceType, resourceId);
+	}
+	
+	/**
+	 * Parses the payload back into a resource, for publishers that only work with resources
+	 *
+	 * @param context the FHIR context
+	 * @return a new copy of the resource
+	 */
+	public IAnyResource toResource(@NotNull FhirContext context) {
+		return (IAnyResource) context.newJsonParser().parseResource(text);
+	}
+	
+	public int size() {
+		return bytes.length;
+	}
+	
+	@Override
+	public String toString() {
+		return resourceType + "/" + resourceId + " (" + bytes.length + " bytes)";
+	}
+}
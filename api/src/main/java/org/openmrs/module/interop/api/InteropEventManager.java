@@ -9,14 +9,27 @@
  */
 package org.openmrs.module.interop.api;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.api.context.Daemon;
 import org.openmrs.event.Event;
 import org.openmrs.module.DaemonToken;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.api.dispatch.EventCoalescer;
+import org.openmrs.module.interop.api.dispatch.EventDispatcher;
+import org.openmrs.module.interop.api.dispatch.EventTask;
+import org.openmrs.module.interop.api.dispatch.InteropEventListener;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
+import org.openmrs.module.interop.api.model.PendingEvent;
+import org.openmrs.module.interop.utils.GlobalPropertyUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -24,6 +37,8 @@ import org.springframework.stereotype.Component;
 @Component("interop.eventManager")
 public class InteropEventManager {
 	
+	private static final long DEFAULT_DRAIN_TIMEOUT_MS = 10000;
+	
 	@Setter
 	@Getter
 	public DaemonToken daemonToken;
@@ -31,25 +46,98 @@ public class InteropEventManager {
 	@Autowired
 	private List<? extends Subscribable<? extends OpenmrsObject>> observers;
 	
+	@Autowired
+	private EventDispatcher eventDispatcher;
+	
+	@Autowired
+	private EventCoalescer eventCoalescer;
+	
+	@Autowired
+	private InteropEventListener eventListener;
+	
+	@Autowired
+	private InteropService interopService;
+	
+	private Map<Class<?>, Set<Event.Action>> subscriptions;
+	
 	public void enableEvents() {
 		log.info("Enabling OpenMRS Interoperability Layer Events");
-		observers.forEach(observer -> {
-			observer.setDaemonToken(getDaemonToken());
-			observer.actions().forEach(action -> {
-				log.debug("Registering observer on {} with event {}", observer.clazz(), action.name());
-				Event.subscribe(observer.clazz(), action.name(), observer);
-			});
-		});
+		eventDispatcher.start(getDaemonToken());
+		eventCoalescer.start();
+		observers.forEach(observer -> observer.setDaemonToken(getDaemonToken()));
+		subscriptions = eventListener.register(observers);
+		subscriptions.forEach((clazz, actions) -> actions.forEach(action -> {
+			log.debug("Registering event listener on {} with event {}", clazz, action.name());
+			Event.subscribe(clazz, action.name(), eventListener);
+		}));
+		replayPendingEvents();
 	}
 	
 	public void disableEvents() {
 		log.info("Disabling OpenMRS Interoperability Layer Events");
-		observers.forEach(observer -> {
-			observer.setDaemonToken(getDaemonToken());
-			observer.actions().forEach(action -> {
-				log.debug("Unsubscribing {} observer with event {}", observer.clazz(), action.name());
-				Event.unsubscribe(observer.clazz(), action, observer);
-			});
-		});
+		if (subscriptions != null) {
+			subscriptions.forEach((clazz, actions) -> actions.forEach(action -> {
+				log.debug("Unsubscribing event listener from {} with event {}", clazz, action.name());
+				Event.unsubscribe(clazz, action, eventListener);
+			}));
+			subscriptions = null;
+		}
+		eventListener.clear();
+		eventCoalescer.shutdown();
+		long drainTimeoutMs = GlobalPropertyUtils.getLong(InteropConstant.GP_SHUTDOWN_DRAIN_TIMEOUT_MS,
+		    DEFAULT_DRAIN_TIMEOUT_MS);
+		savePendingEvents(eventDispatcher.shutdown(drainTimeoutMs));
+	}
+	
+	/**
+	 * Persists the events whose processing didn't get to run before shutdown
+	 */
+	private void savePendingEvents(List<Runnable> unfinished) {
+		List<PendingEvent> events = new ArrayList<>(unfinished.size());
+		for (Runnable task : unfinished) {
+			if (!(task instanceof EventTask)) {
+				log.warn("Dropping unfinished task {}, it isn't an event", task);
+				continue;
+			}
+			EventEnvelope envelope = ((EventTask) task).getEnvelope();
+			PendingEvent event = new PendingEvent();
+			event.setEntityClass(envelope.getEntityClass());
+			event.setAction(envelope.getAction());
+			event.setEntityUuid(envelope.getUuid());
+			event.setDateReceived(new Date(envelope.getReceivedAt()));
+			events.add(event);
+		}
+		if (events.isEmpty()) {
+			return;
+		}
+		try {
+			Daemon.runInDaemonThreadAndWait(() -> interopService.savePendingEvents(events), getDaemonToken());
+			log.info("Saved {} unprocessed events for the next start", events.size());
+		}
+		catch (Exception e) {
+			log.error("Unable to save {} unprocessed events", events.size(), e);
+		}
+	}
+	
+	/**
+	 * Hands the events left unprocessed by the last shutdown back to the observers
+	 */
+	private void replayPendingEvents() {
+		List<PendingEvent> events = interopService.getAllPendingEvents();
+		if (events.isEmpty()) {
+			return;
+		}
+		log.info("Replaying {} events left unprocessed by the last shutdown", events.size());
+		for (PendingEvent event : events) {
+			try {
+				eventListener.deliver(new EventEnvelope(event.getEntityClass(), event.getAction(), event.getEntityUuid(),
+				        event.getDateReceived().getTime()));
+				interopService.purgePendingEvent(event);
+			}
+			catch (Exception e) {
+				log.error("Unable to replay {} event for {} with UUID {}", event.getAction(), event.getEntityClass(),
+				    event.getEntityUuid(), e);
+			}
+		}
 	}
 }
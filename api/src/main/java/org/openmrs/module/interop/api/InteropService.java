@@ -9,6 +9,160 @@
  */
 package org.openmrs.module.interop.api;
 
+import java.util.Date;
+import java.util.List;
+
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.interop.api.model.ContentHash;
+import org.openmrs.module.interop.api.model.DeadLetterEntry;
+import org.openmrs.module.interop.api.model.OutboxEntry;
+import org.openmrs.module.interop.api.model.PendingEvent;
+import org.springframework.transaction.annotation.Transactional;
 
-public interface InteropService extends OpenmrsService {}
+public interface InteropService extends OpenmrsService {
+	
+	/**
+	 * Looks up the UUID of the patient an entity belongs to without loading the entity graph
+	 *
+	 * @param entityClass the OpenMRS class of the entity e.g. Encounter, Order, Condition
+	 * @param uuid the entity UUID
+	 * @return the patient UUID, or null if the entity isn't found
+	 */
+	@Transactional(readOnly = true)
+	String getPatientUuid(Class<?> entityClass, String uuid);
+	
+	/**
+	 * Records an encoded FHIR resource for delivery to the enabled publishers
+	 *
+	 * @param entry the outbox entry
+	 * @return the saved entry
+	 */
+	@Transactional
+	OutboxEntry saveOutboxEntry(OutboxEntry entry);
+	
+	/**
+	 * Gets the oldest pending outbox entries of a destination that haven't been attempted since the
+	 * given date
+	 *
+	 * @param destination the publisher the entries are for
+	 * @param attemptedBefore only include entries never attempted or last attempted before this date
+	 * @param maxResults the maximum number of entries to return
+	 * @return pending outbox entries, oldest first
+	 */
+	@Transactional(readOnly = true)
+	List<OutboxEntry> getPendingOutboxEntries(String destination, Date attemptedBefore, int maxResults);
+	
+	/**
+	 * @param destination the publisher the entries are for
+	 * @return the number of pending outbox entries of the destination
+	 */
+	@Transactional(readOnly = true)
+	long getPendingOutboxEntryCount(String destination);
+	
+	/**
+	 * @param destination the publisher the entries are for
+	 * @param contentKey identifies the resource
+	 * @param createdAfter only count entries recorded after this date
+	 * @return the number of pending outbox entries of the destination with a newer version of the
+	 *         resource
+	 */
+	@Transactional(readOnly = true)
+	long getNewerOutboxEntryCount(String destination, String contentKey, Date createdAfter);
+	
+	/**
+	 * Removes a delivered outbox entry
+	 *
+	 * @param entry the outbox entry
+	 */
+	@Transactional
+	void purgeOutboxEntry(OutboxEntry entry);
+	
+	/**
+	 * Gets the hash of the content last delivered to a publisher for a resource
+	 *
+	 * @param destination the publisher the content was delivered to
+	 * @param resourceKey identifies the resource
+	 * @return the content hash, or null if nothing was recorded
+	 */
+	@Transactional(readOnly = true)
+	ContentHash getContentHash(String destination, String resourceKey);
+	
+	/**
+	 * Records or updates the hash of the content delivered to a publisher for a resource
+	 *
+	 * @param contentHash the content hash
+	 * @return the saved content hash
+	 */
+	@Transactional
+	ContentHash saveContentHash(ContentHash contentHash);
+	
+	/**
+	 * Records or updates a delivery that failed for one publisher
+	 *
+	 * @param entry the dead letter entry
+	 * @return the saved entry
+	 */
+	@Transactional
+	DeadLetterEntry saveDeadLetterEntry(DeadLetterEntry entry);
+	
+	/**
+	 * Moves an outbox entry that failed to be delivered to the dead letter store, in one transaction
+	 * so it is neither lost nor kept in both
+	 *
+	 * @param entry the outbox entry
+	 * @param deadLetter the dead letter entry replacing it
+	 * @return the saved dead letter entry
+	 */
+	@Transactional
+	DeadLetterEntry moveToDeadLetter(OutboxEntry entry, DeadLetterEntry deadLetter);
+	
+	/**
+	 * Gets pending dead letter entries whose next attempt is due
+	 *
+	 * @param dueBy include entries due at or before this date
+	 * @param maxResults the maximum number of entries to return
+	 * @return due dead letter entries, earliest first
+	 */
+	@Transactional(readOnly = true)
+	List<DeadLetterEntry> getDueDeadLetterEntries(Date dueBy, int maxResults);
+	
+	/**
+	 * @param destination the publisher the entries are for
+	 * @param contentKey identifies the resource
+	 * @param createdAfter only count entries recorded after this date
+	 * @return the number of pending dead letter entries of the destination with a newer version of
+	 *         the resource
+	 */
+	@Transactional(readOnly = true)
+	long getNewerDeadLetterEntryCount(String destination, String contentKey, Date createdAfter);
+	
+	/**
+	 * Removes a dead letter entry once it has been delivered
+	 *
+	 * @param entry the dead letter entry
+	 */
+	@Transactional
+	void purgeDeadLetterEntry(DeadLetterEntry entry);
+	
+	/**
+	 * Records events that were received but not processed before the module stopped
+	 *
+	 * @param events the unprocessed events
+	 */
+	@Transactional
+	void savePendingEvents(List<PendingEvent> events);
+	
+	/**
+	 * @return the events left unprocessed by the last shutdown, oldest first
+	 */
+	@Transactional(readOnly = true)
+	List<PendingEvent> getAllPendingEvents();
+	
+	/**
+	 * Removes a pending event once it has been handed back to the observers
+	 *
+	 * @param event the pending event
+	 */
+	@Transactional
+	void purgePendingEvent(PendingEvent event);
+}
@@ -11,8 +11,13 @@ package org.openmrs.module.interop.api;
 
 import javax.validation.constraints.NotNull;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 import ca.uhn.fhir.context.FhirContext;
 import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.openmrs.module.interop.api.delivery.PublisherRegistry;
 
 public interface Publisher {
 	
@@ -30,6 +35,54 @@ public interface Publisher {
 	 */
 	void publish(@NotNull IAnyResource resource);
 	
+	/**
+	 * Publishes a resource that was already encoded, so it is serialized once however many publishers
+	 * are enabled. Publishers that don't override this get the resource parsed back from the payload.
+	 *
+	 * @param context the FHIR context
+	 * @param payload the encoded resource
+	 * @param serverToken the token used to authenticate with the server
+	 */
+	default void publish(@NotNull FhirContext context, @NotNull EncodedPayload payload, String serverToken) {
+		publish(context, payload.toResource(context), serverToken);
+	}
+	
+	/**
+	 * Publishes several encoded resources, saving the round trip per resource where the destination
+	 * accepts more than one at a time. Either all are delivered or an exception is thrown, in which
+	 * case some may have been delivered. The default publishes them one after another.
+	 *
+	 * @param context the FHIR context
+	 * @param payloads the encoded resources
+	 * @param serverToken the token used to authenticate with the server
+	 */
+	default void publishBatch(@NotNull FhirContext context, @NotNull List<EncodedPayload> payloads, String serverToken) {
+		for (EncodedPayload payload : payloads) {
+			publish(context, payload, serverToken);
+		}
+	}
+	
+	/**
+	 * Publishes an encoded resource without holding the calling thread, so several publishers can
+	 * deliver the same payload concurrently. Publishers with a non-blocking client should override
+	 * this, the default runs {@link #publish(FhirContext, EncodedPayload, String)} on the executor.
+	 *
+	 * @param context the FHIR context
+	 * @param payload the encoded resource
+	 * @param serverToken the token used to authenticate with the server
+	 * @param executor the executor for blocking work, its threads have an OpenMRS session
+	 * @return a future completed once the destination acknowledges the delivery, or completed
+	 *         exceptionally if it fails
+	 */
+	default CompletableFuture<DeliveryReceipt> publishAsync(@NotNull FhirContext context,
+	        @NotNull EncodedPayload payload, String serverToken, @NotNull Executor executor) {
+		long startedAt = System.currentTimeMillis();
+		return CompletableFuture.supplyAsync(() -> {
+			publish(context, payload, serverToken);
+			return new DeliveryReceipt(PublisherRegistry.nameOf(this), payload, startedAt);
+		}, executor);
+	}
+	
 	default boolean isEnabled() {
 		return false;
 	}
@@ -38,4 +91,11 @@ public interface Publisher {
 		return true;
 	}
 	
+	/**
+	 * Releases connections the publisher keeps between deliveries, called when the module stops. The
+	 * publisher may open them again if it is used afterwards.
+	 */
+	default void close() {
+	}
+	
 }
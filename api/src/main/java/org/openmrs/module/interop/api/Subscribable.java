@@ -11,8 +11,8 @@ package org.openmrs.module.interop.api;
 
 import javax.validation.constraints.NotNull;
 
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.openmrs.Auditable;
@@ -20,6 +20,7 @@ import org.openmrs.OpenmrsObject;
 import org.openmrs.event.Event;
 import org.openmrs.event.EventListener;
 import org.openmrs.module.DaemonToken;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
 
 /**
  * A wrapper interface for all observers
@@ -30,11 +31,18 @@ public interface Subscribable<E extends OpenmrsObject & Auditable> extends Event
 	
 	List<Event.Action> actions();
 	
+	/**
+	 * Handles an event already parsed by the listener, so the message isn't parsed again per observer
+	 *
+	 * @param envelope the event envelope
+	 */
+	void onEvent(@NotNull EventEnvelope envelope);
+	
 	void setDaemonToken(@NotNull DaemonToken daemonToken);
 	
 	DaemonToken getDaemonToken();
 	
-	Set<Class<? extends Publisher>> getPublishers();
+	Collection<Publisher> getPublishers();
 	
 	void publish(@NotNull IAnyResource resource);
 }
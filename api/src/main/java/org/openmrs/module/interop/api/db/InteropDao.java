@@ -0,0 +1,58 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.db;
+
+import java.util.Date;
+import java.util.List;
+
+import org.openmrs.module.interop.api.InteropService;
+import org.openmrs.module.interop.api.model.ContentHash;
+import org.openmrs.module.interop.api.model.DeadLetterEntry;
+import org.openmrs.module.interop.api.model.OutboxEntry;
+import org.openmrs.module.interop.api.model.PendingEvent;
+
+/**
+ * Database access for the {@link InteropService}
+ */
+public interface InteropDao {
+	
+	/**
+	 * @see InteropService#getPatientUuid(Class, String)
+	 */
+	String getPatientUuid(Class<?> entityClass, String uuid);
+	
+	OutboxEntry saveOutboxEntry(OutboxEntry entry);
+	
+	List<OutboxEntry> getPendingOutboxEntries(String destination, Date attemptedBefore, int maxResults);
+	
+	long getPendingOutboxEntryCount(String destination);
+	
+	long getNewerOutboxEntryCount(String destination, String contentKey, Date createdAfter);
+	
+	void deleteOutboxEntry(OutboxEntry entry);
+	
+	ContentHash getContentHash(String destination, String resourceKey);
+	
+	ContentHash saveContentHash(ContentHash contentHash);
+	
+	DeadLetterEntry saveDeadLetterEntry(DeadLetterEntry entry);
+	
+	List<DeadLetterEntry> getDueDeadLetterEntries(Date dueBy, int maxResults);
+	
+	long getNewerDeadLetterEntryCount(String destination, String contentKey, Date createdAfter);
+	
+	void deleteDeadLetterEntry(DeadLetterEntry entry);
+	
+	PendingEvent savePendingEvent(PendingEvent event);
+	
+	List<PendingEvent> getAllPendingEvents();
+	
+	void deletePendingEvent(PendingEvent event);
+}
@@ -0,0 +1,138 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.db.hibernate;
+
+import java.util.Date;
+import java.util.List;
+
+import lombok.Setter;
+import org.openmrs.Patient;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.interop.api.db.InteropDao;
+import org.openmrs.module.interop.api.model.ContentHash;
+import org.openmrs.module.interop.api.model.DeadLetterEntry;
+import org.openmrs.module.interop.api.model.OutboxEntry;
+import org.openmrs.module.interop.api.model.PendingEvent;
+
+public class HibernateInteropDao implements InteropDao {
+	
+	@Setter
+	private DbSessionFactory sessionFactory;
+	
+	@Override
+	public String getPatientUuid(Class<?> entityClass, String uuid) {
+		if (Patient.class.isAssignableFrom(entityClass)) {
+			return uuid;
+		}
+		return (String) sessionFactory.getCurrentSession()
+		        .createQuery("select e.patient.uuid from " + entityClass.getName() + " e where e.uuid = :uuid")
+		        .setParameter("uuid", uuid).uniqueResult();
+	}
+	
+	@Override
+	public OutboxEntry saveOutboxEntry(OutboxEntry entry) {
+		sessionFactory.getCurrentSession().saveOrUpdate(entry);
+		return entry;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<OutboxEntry> getPendingOutboxEntries(String destination, Date attemptedBefore, int maxResults) {
+		return sessionFactory.getCurrentSession()
+		        .createQuery("from OutboxEntry e where e.destination = :destination and e.status = :status "
+		                + "and (e.dateLastAttempted is null or e.dateLastAttempted < :attemptedBefore) order by e.id")
+		        .setParameter("destination", destination).setParameter("status", OutboxEntry.Status.PENDING)
+		        .setParameter("attemptedBefore", attemptedBefore).setMaxResults(maxResults).list();
+	}
+	
+	@Override
+	public long getPendingOutboxEntryCount(String destination) {
+		return (Long) sessionFactory.getCurrentSession()
+		        .createQuery("select count(*) from OutboxEntry e where e.destination = :destination and e.status = :status")
+		        .setParameter("destination", destination).setParameter("status", OutboxEntry.Status.PENDING)
+		        .uniqueResult();
+	}
+	
+	@Override
+	public long getNewerOutboxEntryCount(String destination, String contentKey, Date createdAfter) {
+		return (Long) sessionFactory.getCurrentSession()
+		        .createQuery("select count(*) from OutboxEntry e where e.destination = :destination "
+		                + "and e.contentKey = :contentKey and e.status = :status and e.dateCreated > :createdAfter")
+		        .setParameter("destination", destination).setParameter("contentKey", contentKey)
+		        .setParameter("status", OutboxEntry.Status.PENDING).setParameter("createdAfter", createdAfter)
+		        .uniqueResult();
+	}
+	
+	@Override
+	public void deleteOutboxEntry(OutboxEntry entry) {
+		sessionFactory.getCurrentSession().delete(entry);
+	}
+	
+	@Override
+	public ContentHash getContentHash(String destination, String resourceKey) {
+		return (ContentHash) sessionFactory.getCurrentSession()
+		        .createQuery("from ContentHash h where h.destination = :destination and h.resourceKey = :resourceKey")
+		        .setParameter("destination", destination).setParameter("resourceKey", resourceKey).uniqueResult();
+	}
+	
+	@Override
+	public ContentHash saveContentHash(ContentHash contentHash) {
+		sessionFactory.getCurrentSession().saveOrUpdate(contentHash);
+		return contentHash;
+	}
+	
+	@Override
+	public DeadLetterEntry saveDeadLetterEntry(DeadLetterEntry entry) {
+		sessionFactory.getCurrentSession().saveOrUpdate(entry);
+		return entry;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<DeadLetterEntry> getDueDeadLetterEntries(Date dueBy, int maxResults) {
+		return sessionFactory.getCurrentSession()
+		        .createQuery("from DeadLetterEntry e where e.status = :status and e.nextAttempt <= :dueBy "
+		                + "order by e.nextAttempt")
+		        .setParameter("status", DeadLetterEntry.Status.PENDING).setParameter("dueBy", dueBy)
+		        .setMaxResults(maxResults).list();
+	}
+	
+	@Override
+	public long getNewerDeadLetterEntryCount(String destination, String contentKey, Date createdAfter) {
+		return (Long) sessionFactory.getCurrentSession()
+		        .createQuery("select count(*) from DeadLetterEntry e where e.destination = :destination "
+		                + "and e.contentKey = :contentKey and e.status = :status and e.dateCreated > :createdAfter")
+		        .setParameter("destination", destination).setParameter("contentKey", contentKey)
+		        .setParameter("status", DeadLetterEntry.Status.PENDING).setParameter("createdAfter", createdAfter)
+		        .uniqueResult();
+	}
+	
+	@Override
+	public void deleteDeadLetterEntry(DeadLetterEntry entry) {
+		sessionFactory.getCurrentSession().delete(entry);
+	}
+	
+	@Override
+	public PendingEvent savePendingEvent(PendingEvent event) {
+		sessionFactory.getCurrentSession().saveOrUpdate(event);
+		return event;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<PendingEvent> getAllPendingEvents() {
+		return sessionFactory.getCurrentSession().createQuery("from PendingEvent e order by e.id").list();
+	}
+	
+	@Override
+	public void deletePendingEvent(PendingEvent event) {
+		sessionFactory.getCurrentSession().delete(event);
+	}
+}
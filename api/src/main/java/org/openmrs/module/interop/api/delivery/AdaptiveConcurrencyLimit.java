@@ -0,0 +1,90 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+/**
+ * Additive increase, multiplicative decrease of the number of concurrent deliveries to a publisher.
+ * After every round of deliveries the limit grows by one if the round used the whole limit without
+ * errors and its latency stayed close to the baseline, the lowest latency seen recently. It is
+ * halved when a delivery fails or the latency rises well above the baseline, so a slow link settles
+ * on few concurrent deliveries and a fast one on many. Rounds deliver batches of varying size, the
+ * latency is taken per entry so it follows the link rather than the size of the batches.
+ */
+public class AdaptiveConcurrencyLimit {
+	
+	static final int BASELINE_WINDOW = 50;
+	
+	private static final double BACKOFF_RATIO = 0.5;
+	
+	private static final double LATENCY_TOLERANCE = 2.0;
+	
+	private final int minLimit;
+	
+	private final int maxLimit;
+	
+	private int limit;
+	
+	private long baselineNanos = Long.MAX_VALUE;
+	
+	private long windowMinNanos = Long.MAX_VALUE;
+	
+	private int windowRounds;
+	
+	public AdaptiveConcurrencyLimit(int minLimit, int maxLimit, int initialLimit) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+	}
+	
+	public synchronized int getLimit() {
+		return limit;
+	}
+	
+	/**
+	 * @return the lowest latency in nanoseconds of the current baseline, or -1 before the first round
+	 */
+	public synchronized long getBaselineNanos() {
+		return baselineNanos == Long.MAX_VALUE ? -1 : baselineNanos;
+	}
+	
+	/**
+	 * Adjusts the limit after a round of concurrent deliveries
+	 *
+	 * @param latencyNanos the latency per entry of the slowest delivery of the round, i.e. how long
+	 *            its call took divided by the entries it delivered
+	 * @param failed whether any delivery of the round failed or timed out
+	 * @param inFlight the number of deliveries in the round
+	 */
+	public synchronized void update(long latencyNanos, boolean failed, int inFlight) {
+		if (!failed) {
+			trackBaseline(latencyNanos);
+		}
+		boolean congested = failed || latencyNanos > baselineNanos * LATENCY_TOLERANCE;
+		if (congested) {
+			limit = Math.max(minLimit, (int) (limit * BACKOFF_RATIO));
+		} else if (inFlight >= limit) {
+			limit = Math.min(maxLimit, limit + 1);
+		}
+	}
+	
+	/**
+	 * The baseline is the lowest latency of the last window of rounds, so it follows the link when it
+	 * gets permanently slower instead of holding on to one fast round
+	 */
+	private void trackBaseline(long latencyNanos) {
+		baselineNanos = Math.min(baselineNanos, latencyNanos);
+		windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+		if (++windowRounds >= BASELINE_WINDOW) {
+			baselineNanos = windowMinNanos;
+			windowMinNanos = Long.MAX_VALUE;
+			windowRounds = 0;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.function.LongSupplier;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Stops deliveries to a publisher that keeps failing. The breaker opens after a number of
+ * consecutive failures and deliveries fail fast while it is open. Once the open period is over a
+ * probe checks the connection, see {@link org.openmrs.module.interop.api.Publisher#verifyConnection()}.
+ * If the probe succeeds the breaker is half open and a single trial delivery decides whether it
+ * closes or opens again.
+ */
+@Slf4j
+public class CircuitBreaker {
+	
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+	
+	@Getter
+	private final String name;
+	
+	private final int failureThreshold;
+	
+	private final long openMillis;
+	
+	private final LongSupplier clock;
+	
+	private State state = State.CLOSED;
+	
+	private int consecutiveFailures;
+	
+	private long openedAt;
+	
+	private boolean trialInFlight;
+	
+	private boolean probing;
+	
+	public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+		this(name, failureThreshold, openMillis, System::currentTimeMillis);
+	}
+	
+	CircuitBreaker(String name, int failureThreshold, long openMillis, LongSupplier clock) {
+		this.name = name;
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openMillis = openMillis;
+		this.clock = clock;
+	}
+	
+	public synchronized State getState() {
+		return state;
+	}
+	
+	/**
+	 * @return false while the breaker is open, deliveries may be attempted otherwise
+	 */
+	public synchronized boolean isAvailable() {
+		return state != State.OPEN;
+	}
+	
+	/**
+	 * @return when an open breaker is probed at the earliest, in the time of its clock, 0 if it
+	 *         isn't open
+	 */
+	public synchronized long getProbeAt() {
+		return state == State.OPEN ? openedAt + openMillis : 0;
+	}
+	
+	/**
+	 * Asks to make a delivery
+	 *
+	 * @return true if the delivery may go ahead, false if it should fail fast
+	 */
+	public synchronized boolean tryAcquire() {
+		switch (state) {
+			case CLOSED:
+				return true;
+			case HALF_OPEN:
+				if (!trialInFlight) {
+					trialInFlight = true;
+					return true;
+				}
+				return false;
+			default:
+				return false;
+		}
+	}
+	
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		trialInFlight = false;
+		if (state != State.CLOSED) {
+			log.info("Closing the circuit of {}", name);
+			state = State.CLOSED;
+		}
+	}
+	
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			log.warn("Opening the circuit of {} after {} consecutive failures", name, consecutiveFailures);
+			open();
+		}
+	}
+	
+	/**
+	 * Opens a closed breaker without waiting for deliveries to fail, e.g. when a health check finds the
+	 * publisher unreachable. Probes close it again once the publisher is back.
+	 *
+	 * @param reason why the publisher is considered down, for the log
+	 */
+	public synchronized void trip(String reason) {
+		if (state == State.CLOSED) {
+			log.warn("Opening the circuit of {}, {}", name, reason);
+			open();
+		}
+	}
+	
+	/**
+	 * Claims the probe of an open breaker whose open period is over, only one probe runs at a time
+	 *
+	 * @return true if the caller should probe the connection and report with
+	 *         {@link #recordProbe(boolean)}
+	 */
+	public synchronized boolean tryStartProbe() {
+		if (state != State.OPEN || probing || clock.getAsLong() - openedAt < openMillis) {
+			return false;
+		}
+		probing = true;
+		return true;
+	}
+	
+	/**
+	 * @param reachable whether the connection check succeeded
+	 */
+	public synchronized void recordProbe(boolean reachable) {
+		probing = false;
+		if (state != State.OPEN) {
+			return;
+		}
+		if (reachable) {
+			log.info("{} is reachable again, allowing a trial delivery", name);
+			state = State.HALF_OPEN;
+			trialInFlight = false;
+		} else {
+			openedAt = clock.getAsLong();
+		}
+	}
+	
+	private void open() {
+		state = State.OPEN;
+		openedAt = clock.getAsLong();
+		trialInFlight = false;
+	}
+}
@@ -0,0 +1,336 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.api.EncodedPayload;
+import org.openmrs.module.interop.api.InteropService;
+import org.openmrs.module.interop.api.model.ContentHash;
+import org.openmrs.module.interop.utils.GlobalPropertyUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Skips delivering a resource to a publisher when its content hasn't changed since it was last
+ * delivered there. While skipping is enabled {@code meta.versionId} and {@code meta.lastUpdated},
+ * which change on every save even when nothing that reaches FHIR did and which FHIR servers assign
+ * themselves, are left out of the payload, so the hash is a SHA-256 of the payload as delivered. The
+ * hash of the last successful delivery per publisher and resource is kept in the
+ * {@code interop_content_hash} table, the most recently used ones also in memory. Only successful
+ * deliveries are recorded, so a failed delivery is never skipped the next time, and content is not
+ * skipped while another version of the resource waits in the outbox or the dead letter store.
+ * Deliveries are recorded, without a hash, even when skipping is disabled, the dead letter retries
+ * use them to drop versions of a resource that a newer one has overtaken.
+ */
+@Slf4j
+@Component("interop.contentDeduplicator")
+public class ContentDeduplicator implements GlobalPropertyListener {
+	
+	private static final int DEFAULT_CACHE_SIZE = 10000;
+	
+	private static final String NOT_RECORDED = "";
+	
+	private static final Date ANY_DATE = new Date(0);
+	
+	@Autowired
+	private InteropService interopService;
+	
+	private final AtomicLong cacheHits = new AtomicLong();
+	
+	private final AtomicLong cacheMisses = new AtomicLong();
+	
+	private final AtomicLong skippedDeliveries = new AtomicLong();
+	
+	private volatile Boolean enabled;
+	
+	private volatile Map<String, String> hashes;
+	
+	public ContentDeduplicator() {
+	}
+	
+	ContentDeduplicator(InteropService interopService, int cacheSize) {
+		this.interopService = interopService;
+		this.hashes = newCache(cacheSize);
+	}
+	
+	@PostConstruct
+	public void register() {
+		Context.getAdministrationService().addGlobalPropertyListener(this);
+	}
+	
+	@PreDestroy
+	public void unregister() {
+		Context.getAdministrationService().removeGlobalPropertyListener(this);
+	}
+	
+	public boolean isEnabled() {
+		Boolean current = enabled;
+		if (current == null) {
+			Boolean loaded = Boolean.parseBoolean(Context.getAdministrationService()
+			        .getGlobalProperty(InteropConstant.GP_DEDUPLICATION_ENABLED, "true"));
+			synchronized (this) {
+				// a change that came in meanwhile wins over what was read
+				if (enabled == null) {
+					enabled = loaded;
+				}
+				current = enabled;
+			}
+		}
+		return current;
+	}
+	
+	/**
+	 * @param destination the publisher, see {@link PublisherRegistry#nameOf}
+	 * @param resourceKey identifies the resource, see {@link #keyOf(IAnyResource)}
+	 * @param contentHash the hash of the content about to be delivered, see {@link #hash(EncodedPayload)}
+	 * @return true if the same content was the last delivered to the publisher for the resource and no
+	 *         other version of it is waiting to be
+	 */
+	public boolean isUnchanged(String destination, String resourceKey, String contentHash) {
+		String cacheKey = destination + "|" + resourceKey;
+		Map<String, String> cache = getHashes();
+		String lastHash;
+		synchronized (cache) {
+			lastHash = cache.get(cacheKey);
+		}
+		if (lastHash != null) {
+			cacheHits.incrementAndGet();
+		} else {
+			cacheMisses.incrementAndGet();
+			ContentHash recorded = interopService.getContentHash(destination, resourceKey);
+			lastHash = recorded != null ? StringUtils.defaultString(recorded.getContentHash(), NOT_RECORDED)
+			        : NOT_RECORDED;
+			synchronized (cache) {
+				cache.putIfAbsent(cacheKey, lastHash);
+			}
+		}
+		// a pending version may differ, e.g. after a change was reverted, and would overwrite this one
+		if (contentHash.equals(lastHash) && !hasPendingEntries(destination, resourceKey)) {
+			skippedDeliveries.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean hasPendingEntries(String destination, String resourceKey) {
+		return interopService.getNewerOutboxEntryCount(destination, resourceKey, ANY_DATE) > 0
+		        || interopService.getNewerDeadLetterEntryCount(destination, resourceKey, ANY_DATE) > 0;
+	}
+	
+	/**
+	 * Records the content delivered to a publisher for a resource, unless newer content was already
+	 * recorded. A failure to record is only logged, the next identical content is then delivered
+	 * again.
+	 *
+	 * @param destination the publisher, see {@link PublisherRegistry#nameOf}
+	 * @param resourceKey identifies the resource, see {@link #keyOf(IAnyResource)}
+	 * @param contentHash the hash of the delivered content, see {@link #hash(EncodedPayload)}, or null
+	 *            if it wasn't hashed
+	 * @param contentDate when the content was recorded for delivery
+	 */
+	public void recordDelivered(String destination, String resourceKey, String contentHash, Date contentDate) {
+		String cacheKey = destination + "|" + resourceKey;
+		Map<String, String> cache = getHashes();
+		synchronized (cache) {
+			cache.put(cacheKey, contentHash != null ? contentHash : NOT_RECORDED);
+		}
+		// saved even when the hash is the same, the date tells the dead letter retries what is outdated
+		try {
+			ContentHash recorded = interopService.getContentHash(destination, resourceKey);
+			if (recorded == null) {
+				recorded = new ContentHash();
+				recorded.setDestination(destination);
+				recorded.setResourceKey(resourceKey);
+			} else if (recorded.getDateChanged().after(contentDate)) {
+				// an older version delivered late, e.g. from the dead letter store
+				synchronized (cache) {
+					cache.put(cacheKey, StringUtils.defaultString(recorded.getContentHash(), NOT_RECORDED));
+				}
+				return;
+			}
+			recorded.setContentHash(contentHash);
+			recorded.setDateChanged(contentDate);
+			interopService.saveContentHash(recorded);
+		}
+		catch (Exception e) {
+			log.warn("Unable to record the content hash of {} for {}", resourceKey, destination, e);
+			synchronized (cache) {
+				cache.remove(cacheKey);
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of lookups answered from memory
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+	
+	/**
+	 * @return the number of lookups that went to the database
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+	
+	/**
+	 * @return the number of deliveries skipped because the content hadn't changed
+	 */
+	public long getSkippedDeliveries() {
+		return skippedDeliveries.get();
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return InteropConstant.GP_DEDUPLICATION_ENABLED.equals(propertyName)
+		        || InteropConstant.GP_DEDUPLICATION_CACHE_SIZE.equals(propertyName);
+	}
+	
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		update(newValue.getProperty(), newValue.getPropertyValue());
+	}
+	
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		update(propertyName, null);
+	}
+	
+	/**
+	 * The change isn't committed yet, so the new value is applied rather than read
+	 */
+	private synchronized void update(String propertyName, String value) {
+		if (InteropConstant.GP_DEDUPLICATION_ENABLED.equals(propertyName)) {
+			enabled = Boolean.parseBoolean(StringUtils.defaultIfBlank(value, "true").trim());
+		} else {
+			hashes = newCache(NumberUtils.toInt(StringUtils.trim(value), DEFAULT_CACHE_SIZE));
+		}
+	}
+	
+	/**
+	 * Identifies a resource across updates by its type and id. A bundle without an id, e.g. the one
+	 * built for an encounter, is identified by its first entry.
+	 *
+	 * @param resource the resource
+	 * @return the key, or null if the resource can't be identified
+	 */
+	public static String keyOf(IAnyResource resource) {
+		String id = resource.getIdElement().getIdPart();
+		if (id != null) {
+			return resource.fhirType() + "/" + id;
+		}
+		if (resource instanceof Bundle && ((Bundle) resource).hasEntry()) {
+			Resource first = ((Bundle) resource).getEntryFirstRep().getResource();
+			if (first != null && first.getIdElement().getIdPart() != null) {
+				return "Bundle/" + first.fhirType() + "/" + first.getIdElement().getIdPart();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Clears {@code meta.versionId} and {@code meta.lastUpdated} of the resource, also those of the
+	 * entries of a bundle, so the payload encoded from it hashes the same across saves. Elements of the
+	 * same name elsewhere are kept.
+	 *
+	 * @param resource the resource about to be encoded
+	 */
+	public static void normalize(IAnyResource resource) {
+		if (!(resource instanceof Resource)) {
+			return;
+		}
+		clearVolatileMeta((Resource) resource);
+		if (resource instanceof Bundle) {
+			for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+				clearVolatileMeta(entry.getResource());
+			}
+		}
+	}
+	
+	/**
+	 * @param payload the payload encoded from a {@link #normalize(IAnyResource) normalized} resource
+	 * @return the hex SHA-256 of the payload
+	 */
+	public static String hash(EncodedPayload payload) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(payload.getBytes());
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static void clearVolatileMeta(Resource resource) {
+		if (resource == null) {
+			return;
+		}
+		if (resource.hasMeta()) {
+			resource.getMeta().setVersionId(null);
+			resource.getMeta().setLastUpdated(null);
+		}
+		// the parser copies meta.versionId into the id
+		if (resource.getIdElement().hasVersionIdPart()) {
+			resource.setIdElement(resource.getIdElement().toVersionless());
+		}
+	}
+	
+	private Map<String, String> getHashes() {
+		Map<String, String> current = hashes;
+		if (current == null) {
+			int cacheSize = GlobalPropertyUtils.getInteger(InteropConstant.GP_DEDUPLICATION_CACHE_SIZE,
+			    DEFAULT_CACHE_SIZE);
+			synchronized (this) {
+				// callers have to share one cache, the hashes recorded in a second one would be lost
+				if (hashes == null) {
+					hashes = newCache(cacheSize);
+				}
+				current = hashes;
+			}
+		}
+		return current;
+	}
+	
+	private static Map<String, String> newCache(int size) {
+		int cacheSize = Math.max(1, size);
+		return new LinkedHashMap<String, String>(16, 0.75f, true) {
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+}
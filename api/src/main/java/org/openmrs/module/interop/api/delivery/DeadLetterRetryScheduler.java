@@ -0,0 +1,328 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.api.EncodedPayload;
+import org.openmrs.module.interop.api.InteropService;
+import org.openmrs.module.interop.api.Publisher;
+import org.openmrs.module.interop.api.model.ContentHash;
+import org.openmrs.module.interop.api.model.DeadLetterEntry;
+import org.openmrs.module.interop.api.model.OutboxEntry;
+import org.openmrs.module.interop.utils.GlobalPropertyUtils;
+import org.openmrs.module.interop.utils.OauthUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps failed deliveries in the dead letter store and retries them with exponential backoff and
+ * jitter. Retries run on their own daemon thread and at most one batch is retried per interval, so
+ * a backlog of failures can't starve live deliveries. An entry is dropped instead of retried once a
+ * newer version of its resource is delivered or waiting to be, so a retry never overwrites it, and
+ * once a delivery that timed out succeeds after all, so it isn't delivered twice.
+ */
+@Slf4j
+@Component("interop.deadLetterRetryScheduler")
+public class DeadLetterRetryScheduler {
+	
+	private static final long DEFAULT_INTERVAL_MS = 30000;
+	
+	private static final int DEFAULT_BATCH_SIZE = 20;
+	
+	private static final int DEFAULT_MAX_ATTEMPTS = 10;
+	
+	private static final long DEFAULT_BASE_DELAY_MS = 30000;
+	
+	private static final long DEFAULT_MAX_DELAY_MS = 6 * 60 * 60 * 1000L;
+	
+	private static final int MAX_ERROR_LENGTH = 1024;
+	
+	private final Object lock = new Object();
+	
+	@Autowired
+	private InteropService interopService;
+	
+	@Autowired
+	private PublisherRegistry publisherRegistry;
+	
+	@Autowired
+	private DeliveryCoordinator deliveryCoordinator;
+	
+	@Autowired
+	private ContentDeduplicator contentDeduplicator;
+	
+	@Getter
+	private volatile boolean running;
+	
+	private long intervalMs = DEFAULT_INTERVAL_MS;
+	
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	
+	private long baseDelayMs = DEFAULT_BASE_DELAY_MS;
+	
+	private long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+	
+	private Thread thread;
+	
+	public DeadLetterRetryScheduler() {
+	}
+	
+	DeadLetterRetryScheduler(InteropService interopService, PublisherRegistry publisherRegistry,
+	    DeliveryCoordinator deliveryCoordinator, ContentDeduplicator contentDeduplicator, int maxAttempts) {
+		this.interopService = interopService;
+		this.publisherRegistry = publisherRegistry;
+		this.deliveryCoordinator = deliveryCoordinator;
+		this.contentDeduplicator = contentDeduplicator;
+		this.maxAttempts = maxAttempts;
+	}
+	
+	public synchronized void start(DaemonToken daemonToken) {
+		if (running) {
+			return;
+		}
+		intervalMs = Math.max(1000, GlobalPropertyUtils.getLong(InteropConstant.GP_RETRY_INTERVAL_MS, DEFAULT_INTERVAL_MS));
+		batchSize = Math.max(1, GlobalPropertyUtils.getInteger(InteropConstant.GP_RETRY_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+		maxAttempts = Math.max(1,
+		    GlobalPropertyUtils.getInteger(InteropConstant.GP_RETRY_MAX_ATTEMPTS, DEFAULT_MAX_ATTEMPTS));
+		baseDelayMs = Math.max(1000,
+		    GlobalPropertyUtils.getLong(InteropConstant.GP_RETRY_BASE_DELAY_MS, DEFAULT_BASE_DELAY_MS));
+		maxDelayMs = Math.max(baseDelayMs,
+		    GlobalPropertyUtils.getLong(InteropConstant.GP_RETRY_MAX_DELAY_MS, DEFAULT_MAX_DELAY_MS));
+		running = true;
+		thread = Daemon.runInDaemonThread(this::retry, daemonToken);
+		log.info("Started interop dead letter retries, {} entries every {} ms", batchSize, intervalMs);
+	}
+	
+	public synchronized void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+		try {
+			thread.join(intervalMs);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.info("Stopped interop dead letter retries");
+	}
+	
+	/**
+	 * Moves a delivery that failed for one publisher from the outbox to the dead letter store
+	 *
+	 * @param entry the outbox entry that was being delivered
+	 * @param publisher the publisher that failed
+	 * @param error the delivery error
+	 */
+	public void recordFailure(OutboxEntry entry, Publisher publisher, Exception error) {
+		DeadLetterEntry deadLetter = new DeadLetterEntry();
+		deadLetter.setResourceType(entry.getResourceType());
+		deadLetter.setResourceId(entry.getResourceId());
+		deadLetter.setPayload(entry.getPayload());
+		deadLetter.setDestination(PublisherRegistry.nameOf(publisher));
+		deadLetter.setContentKey(entry.getContentKey());
+		deadLetter.setContentHash(entry.getContentHash());
+		deadLetter.setDateCreated(entry.getDateCreated());
+		deadLetter.setAttempts(1);
+		deadLetter.setDateLastAttempted(new Date());
+		deadLetter.setError(StringUtils.abbreviate(String.valueOf(error.getMessage()), MAX_ERROR_LENGTH));
+		deadLetter.setNextAttempt(nextAttempt(1));
+		interopService.moveToDeadLetter(entry, deadLetter);
+		recordLateDelivery(error, deadLetter.getDestination(), entry.getContentKey(), entry.getContentHash(),
+		    entry.getDateCreated());
+	}
+	
+	/**
+	 * Records a delivery that timed out but succeeds after all, the dead letter entry then counts as
+	 * superseded. Entries without a content key can't be matched and are retried.
+	 */
+	private void recordLateDelivery(Exception error, String destination, String contentKey, String contentHash,
+	        Date contentDate) {
+		if (error instanceof DeliveryTimeoutException && contentKey != null) {
+			((DeliveryTimeoutException) error).whenDeliveredLate(
+			    () -> contentDeduplicator.recordDelivered(destination, contentKey, contentHash, contentDate));
+		}
+	}
+	
+	/**
+	 * Exponential backoff with equal jitter: half of the delay is fixed and the other half random so
+	 * entries that failed together don't all retry at the same moment
+	 *
+	 * @param attempts the number of attempts made so far
+	 * @param baseDelayMs the delay after the first attempt
+	 * @param maxDelayMs the upper bound of the delay
+	 * @param random source of jitter
+	 * @return the delay in milliseconds before the next attempt
+	 */
+	static long backoffDelay(int attempts, long baseDelayMs, long maxDelayMs, Random random) {
+		int exponent = Math.min(Math.max(attempts - 1, 0), 30);
+		long delay = Math.min(maxDelayMs, baseDelayMs << exponent);
+		if (delay < 0) {
+			delay = maxDelayMs;
+		}
+		long half = delay / 2;
+		return half + (long) (random.nextDouble() * (delay - half));
+	}
+	
+	/**
+	 * @return true if a newer version of the resource is waiting in the outbox or the dead letter
+	 *         store, or if this or a newer version was delivered since
+	 */
+	private boolean isSuperseded(DeadLetterEntry entry) {
+		String contentKey = entry.getContentKey();
+		if (contentKey == null) {
+			return false;
+		}
+		String destination = entry.getDestination();
+		if (interopService.getNewerOutboxEntryCount(destination, contentKey, entry.getDateCreated()) > 0
+		        || interopService.getNewerDeadLetterEntryCount(destination, contentKey, entry.getDateCreated()) > 0) {
+			return true;
+		}
+		ContentHash delivered = interopService.getContentHash(destination, contentKey);
+		// the same date is recorded when this version went through late
+		return delivered != null && !delivered.getDateChanged().before(entry.getDateCreated());
+	}
+	
+	/**
+	 * Moves an entry that wasn't attempted behind the due entries of the other publishers, until its
+	 * circuit is probed again if it is open
+	 */
+	private void postpone(DeadLetterEntry entry, Publisher publisher) {
+		long probeAt = deliveryCoordinator.circuitBreakerOf(publisher).getProbeAt();
+		entry.setNextAttempt(new Date(Math.max(probeAt, System.currentTimeMillis() + intervalMs)));
+		interopService.saveDeadLetterEntry(entry);
+	}
+	
+	private Date nextAttempt(int attempts) {
+		return new Date(
+		        System.currentTimeMillis() + backoffDelay(attempts, baseDelayMs, maxDelayMs, ThreadLocalRandom.current()));
+	}
+	
+	private void retry() {
+		Thread.currentThread().setName("interop-dead-letter-retry");
+		while (running) {
+			try {
+				retryBatch();
+				Context.clearSession();
+			}
+			catch (Exception e) {
+				log.error("Unable to retry interop dead letter entries", e);
+				// keep the session and its daemon user, only drop what the failed batch left behind
+				Context.clearSession();
+			}
+			synchronized (lock) {
+				try {
+					if (running) {
+						lock.wait(intervalMs);
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					running = false;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the token used to authenticate with the servers
+	 */
+	String getServerToken() {
+		return new OauthUtil().getBasicAuthToken();
+	}
+	
+	void retryBatch() {
+		List<DeadLetterEntry> entries = interopService.getDueDeadLetterEntries(new Date(), batchSize);
+		if (entries.isEmpty()) {
+			return;
+		}
+		
+		String serverToken = getServerToken();
+		for (DeadLetterEntry entry : entries) {
+			Publisher publisher = publisherRegistry.getPublisher(entry.getDestination());
+			if (isSuperseded(entry)) {
+				interopService.purgeDeadLetterEntry(entry);
+				log.info("Dropped dead letter entry {} for {}, it went through late or a newer version of {} superseded it",
+				    entry.getId(), entry.getDestination(), entry.getContentKey());
+				continue;
+			}
+			if (publisher == null || !publisher.isEnabled()) {
+				// moved back so the entries of the other publishers come first, the attempt doesn't count
+				log.debug("Publisher {} is disabled, not retrying dead letter entry {}", entry.getDestination(),
+				    entry.getId());
+				entry.setNextAttempt(nextAttempt(entry.getAttempts()));
+				interopService.saveDeadLetterEntry(entry);
+				continue;
+			}
+			if (!deliveryCoordinator.isAvailable(publisher)) {
+				log.debug("The circuit of {} is open, not retrying dead letter entry {}", entry.getDestination(),
+				    entry.getId());
+				postpone(entry, publisher);
+				continue;
+			}
+			try {
+				EncodedPayload payload = EncodedPayload.of(entry.getPayload(), entry.getResourceType(),
+				    entry.getResourceId());
+				Exception error = DeliveryCoordinator.await(
+				    deliveryCoordinator.publish(Collections.singletonList(publisher), payload, serverToken).get(publisher));
+				if (error instanceof DeliveryNotAttemptedException) {
+					// held back by the circuit breaker or rate limit, the attempt doesn't count
+					postpone(entry, publisher);
+					continue;
+				}
+				if (error != null) {
+					throw error;
+				}
+				interopService.purgeDeadLetterEntry(entry);
+				if (entry.getContentKey() != null) {
+					contentDeduplicator.recordDelivered(entry.getDestination(), entry.getContentKey(),
+					    entry.getContentHash(), entry.getDateCreated());
+				}
+				log.info("Delivered dead letter entry {} to {} after {} attempts", entry.getId(),
+				    publisher.getClass().getSimpleName(), entry.getAttempts() + 1);
+			}
+			catch (Exception e) {
+				int attempts = entry.getAttempts() + 1;
+				entry.setAttempts(attempts);
+				entry.setDateLastAttempted(new Date());
+				entry.setError(StringUtils.abbreviate(String.valueOf(e.getMessage()), MAX_ERROR_LENGTH));
+				if (attempts >= maxAttempts) {
+					entry.setStatus(DeadLetterEntry.Status.ABANDONED);
+					log.error("Giving up on dead letter entry {} for {} after {} attempts", entry.getId(),
+					    entry.getDestination(), attempts, e);
+				} else {
+					entry.setNextAttempt(nextAttempt(attempts));
+					log.warn("Retry {} of dead letter entry {} for {} failed", attempts, entry.getId(),
+					    entry.getDestination(), e);
+				}
+				interopService.saveDeadLetterEntry(entry);
+				recordLateDelivery(e, entry.getDestination(), entry.getContentKey(), entry.getContentHash(),
+				    entry.getDateCreated());
+			}
+		}
+	}
+}
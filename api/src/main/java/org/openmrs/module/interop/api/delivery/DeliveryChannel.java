@@ -0,0 +1,348 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.uhn.fhir.context.FhirContext;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Reference;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.interop.api.EncodedPayload;
+import org.openmrs.module.interop.api.InteropService;
+import org.openmrs.module.interop.api.Publisher;
+import org.openmrs.module.interop.api.model.OutboxEntry;
+import org.openmrs.module.interop.utils.OauthUtil;
+
+/**
+ * The outbound queue of one publisher. A channel drains the outbox entries of its destination on a
+ * daemon thread of its own and delivers them on its own workers, as many at a time as its
+ * {@link AdaptiveConcurrencyLimit} allows, so a destination that is down or
+ * slow only holds up its own entries. Entries stay queued while the publisher is disabled or its
+ * {@link CircuitBreaker} is open.
+ * <p>
+ * The entries of one patient go out in the order they were recorded: they are delivered in the same
+ * batch call, and a batch is done before the next is read. A failed delivery doesn't hold up the
+ * patient's later entries though, it moves to the {@link DeadLetterRetryScheduler} and is retried
+ * after them. A retry is dropped once a newer version of the same resource went out, but it can
+ * still arrive after other resources of the patient that were recorded later.
+ */
+@Slf4j
+public class DeliveryChannel {
+	
+	private final Object lock = new Object();
+	
+	@Getter
+	private final Publisher publisher;
+	
+	@Getter
+	private final String destination;
+	
+	private final InteropService interopService;
+	
+	private final DeliveryCoordinator deliveryCoordinator;
+	
+	private final DeadLetterRetryScheduler deadLetterRetryScheduler;
+	
+	private final ContentDeduplicator contentDeduplicator;
+	
+	private final ExecutorService workers;
+	
+	private final Executor sessionExecutor;
+	
+	private final AdaptiveConcurrencyLimit concurrencyLimit;
+	
+	private final int batchSize;
+	
+	private final long pollIntervalMs;
+	
+	private final AtomicLong deliveredEntries = new AtomicLong();
+	
+	private final AtomicLong failedEntries = new AtomicLong();
+	
+	private volatile boolean running;
+	
+	private boolean wakeUpRequested;
+	
+	private Thread thread;
+	
+	private volatile long startedAt;
+	
+	private volatile long queueDepth;
+	
+	private volatile long oldestEntryCreated;
+	
+	DeliveryChannel(Publisher publisher, InteropService interopService, DeliveryCoordinator deliveryCoordinator,
+	    DeadLetterRetryScheduler deadLetterRetryScheduler, ContentDeduplicator contentDeduplicator,
+	    ExecutorService workers, AdaptiveConcurrencyLimit concurrencyLimit, int batchSize, long pollIntervalMs) {
+		this.publisher = publisher;
+		this.destination = PublisherRegistry.nameOf(publisher);
+		this.interopService = interopService;
+		this.deliveryCoordinator = deliveryCoordinator;
+		this.deadLetterRetryScheduler = deadLetterRetryScheduler;
+		this.contentDeduplicator = contentDeduplicator;
+		this.workers = workers;
+		this.sessionExecutor = DeliveryCoordinator.withSession(workers);
+		this.concurrencyLimit = concurrencyLimit;
+		this.batchSize = batchSize;
+		this.pollIntervalMs = pollIntervalMs;
+	}
+	
+	void start(DaemonToken daemonToken) {
+		running = true;
+		startedAt = System.currentTimeMillis();
+		thread = Daemon.runInDaemonThread(this::drain, daemonToken);
+	}
+	
+	void shutdown() {
+		running = false;
+		wakeUp();
+		try {
+			thread.join(pollIntervalMs);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdown();
+	}
+	
+	/**
+	 * Tells the channel new entries are waiting so they don't sit until the next poll
+	 */
+	public void wakeUp() {
+		synchronized (lock) {
+			wakeUpRequested = true;
+			lock.notifyAll();
+		}
+	}
+	
+	/**
+	 * @return the number of pending entries as of the last poll
+	 */
+	public long getQueueDepth() {
+		return queueDepth;
+	}
+	
+	/**
+	 * @return how long in milliseconds the oldest pending entry has been waiting as of the last poll, 0
+	 *         when the queue was empty
+	 */
+	public long getOldestEntryAge() {
+		long created = oldestEntryCreated;
+		return created > 0 ? System.currentTimeMillis() - created : 0;
+	}
+	
+	public long getDeliveredEntries() {
+		return deliveredEntries.get();
+	}
+	
+	public long getFailedEntries() {
+		return failedEntries.get();
+	}
+	
+	/**
+	 * @return the number of deliveries currently allowed to run concurrently
+	 */
+	public int getConcurrencyLimit() {
+		return concurrencyLimit.getLimit();
+	}
+	
+	/**
+	 * @return the average number of entries delivered per second since the channel started
+	 */
+	public double getDeliveryRate() {
+		long elapsed = System.currentTimeMillis() - startedAt;
+		return elapsed > 0 ? deliveredEntries.get() * 1000.0 / elapsed : 0;
+	}
+	
+	private void drain() {
+		Thread.currentThread().setName("interop-channel-" + publisher.getClass().getSimpleName());
+		while (running) {
+			int drained = 0;
+			try {
+				drained = drainBatch();
+				Context.clearSession();
+			}
+			catch (Exception e) {
+				log.error("Unable to drain the interop outbox of {}", destination, e);
+				// keep the session and its daemon user, only drop what the failed batch left behind
+				Context.clearSession();
+			}
+			if (drained < batchSize) {
+				awaitWork();
+			}
+		}
+	}
+	
+	private void awaitWork() {
+		synchronized (lock) {
+			try {
+				if (!wakeUpRequested && running) {
+					lock.wait(pollIntervalMs);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+			wakeUpRequested = false;
+		}
+	}
+	
+	private int drainBatch() {
+		// entries are parked while the publisher is disabled or its circuit is open
+		if (!publisher.isEnabled() || !deliveryCoordinator.isAvailable(publisher)) {
+			queueDepth = interopService.getPendingOutboxEntryCount(destination);
+			return 0;
+		}
+		Date attemptedBefore = new Date(System.currentTimeMillis() - pollIntervalMs);
+		List<OutboxEntry> entries = interopService.getPendingOutboxEntries(destination, attemptedBefore, batchSize);
+		queueDepth = entries.size() < batchSize ? entries.size()
+		        : interopService.getPendingOutboxEntryCount(destination);
+		oldestEntryCreated = entries.isEmpty() ? 0 : entries.get(0).getDateCreated().getTime();
+		if (entries.isEmpty()) {
+			return 0;
+		}
+		
+		String serverToken = new OauthUtil().getBasicAuthToken();
+		List<List<OutboxEntry>> slices = slice(entries, concurrencyLimit.getLimit());
+		List<CompletableFuture<Long>> deliveries = new ArrayList<>();
+		for (List<OutboxEntry> slice : slices) {
+			List<EncodedPayload> payloads = new ArrayList<>(slice.size());
+			for (OutboxEntry entry : slice) {
+				// the stored JSON goes out as is
+				payloads.add(EncodedPayload.of(entry.getPayload(), entry.getResourceType(), entry.getResourceId()));
+			}
+			// timed from after the wait for the rate limit, which happens before publishBatch returns
+			CompletableFuture<Void> delivery = deliveryCoordinator.publishBatch(publisher, payloads, serverToken,
+			    sessionExecutor);
+			long started = System.nanoTime();
+			deliveries.add(delivery.thenApply(ignored -> System.nanoTime() - started));
+		}
+		
+		// outcomes are recorded on this thread, the workers only do the network calls
+		boolean parked = false;
+		boolean failed = false;
+		long latencyPerEntry = 0;
+		for (int i = 0; i < slices.size(); i++) {
+			List<OutboxEntry> slice = slices.get(i);
+			Exception error = DeliveryCoordinator.await(deliveries.get(i));
+			if (error instanceof DeliveryNotAttemptedException) {
+				// held back by the circuit breaker or rate limit, the entries stay in the outbox
+				parked = true;
+				continue;
+			}
+			if (error != null) {
+				failed = true;
+				log.error("Unable to publish {} outbox entries to {}", slice.size(), destination, error);
+				// each entry leaves the outbox in the transaction that adds it to the dead letter store
+				for (OutboxEntry entry : slice) {
+					deadLetterRetryScheduler.recordFailure(entry, publisher, error);
+				}
+				failedEntries.addAndGet(slice.size());
+			} else {
+				latencyPerEntry = Math.max(latencyPerEntry, deliveries.get(i).join() / slice.size());
+				deliveredEntries.addAndGet(slice.size());
+				for (OutboxEntry entry : slice) {
+					if (entry.getContentKey() != null) {
+						contentDeduplicator.recordDelivered(destination, entry.getContentKey(), entry.getContentHash(),
+						    entry.getDateCreated());
+					}
+					interopService.purgeOutboxEntry(entry);
+				}
+			}
+		}
+		if (!parked) {
+			// per entry, so a round of small slices isn't mistaken for a faster link than one of full slices
+			concurrencyLimit.update(latencyPerEntry, failed, slices.size());
+		}
+		return parked ? 0 : entries.size();
+	}
+	
+	/**
+	 * Splits a batch into as many slices as deliveries may run concurrently, each slice is one
+	 * publishBatch call. The entries of one patient stay in the same slice in the order they were
+	 * recorded, other entries go to the smallest slice.
+	 *
+	 * @param entries the entries, oldest first
+	 * @param concurrency the number of deliveries that may run concurrently
+	 * @return the non-empty slices
+	 */
+	static List<List<OutboxEntry>> slice(List<OutboxEntry> entries, int concurrency) {
+		int sliceCount = Math.max(1, Math.min(concurrency, entries.size()));
+		List<List<OutboxEntry>> slices = new ArrayList<>(sliceCount);
+		for (int i = 0; i < sliceCount; i++) {
+			slices.add(new ArrayList<>());
+		}
+		Map<String, List<OutboxEntry>> slicesByKey = new HashMap<>();
+		for (OutboxEntry entry : entries) {
+			// without a patient the versions of one resource still keep their order
+			String key = entry.getOrderingKey() != null ? entry.getOrderingKey() : entry.getContentKey();
+			List<OutboxEntry> slice = key != null ? slicesByKey.get(key) : null;
+			if (slice == null) {
+				slice = slices.get(0);
+				for (List<OutboxEntry> candidate : slices) {
+					if (candidate.size() < slice.size()) {
+						slice = candidate;
+					}
+				}
+				if (key != null) {
+					slicesByKey.put(key, slice);
+				}
+			}
+			slice.add(entry);
+		}
+		slices.removeIf(List::isEmpty);
+		return slices;
+	}
+	
+	/**
+	 * @param fhirContext the FHIR context
+	 * @param resource the resource, a bundle is keyed by its first entry
+	 * @return the patient the resource is about as {@code Patient/<id>}, or null if it doesn't refer
+	 *         to one
+	 */
+	public static String orderingKeyOf(FhirContext fhirContext, IAnyResource resource) {
+		IBaseResource subject = resource;
+		if (resource instanceof Bundle) {
+			subject = ((Bundle) resource).hasEntry() ? ((Bundle) resource).getEntryFirstRep().getResource() : null;
+		}
+		if (subject == null) {
+			return null;
+		}
+		if ("Patient".equals(subject.fhirType())) {
+			String id = subject.getIdElement().getIdPart();
+			return id != null ? "Patient/" + id : null;
+		}
+		for (Reference reference : fhirContext.newTerser().getAllPopulatedChildElementsOfType(subject,
+		    Reference.class)) {
+			IIdType referenced = reference.getReferenceElement();
+			if ("Patient".equals(referenced.getResourceType()) && referenced.getIdPart() != null) {
+				return "Patient/" + referenced.getIdPart();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,449 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import ca.uhn.fhir.context.FhirContext;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.api.DeliveryReceipt;
+import org.openmrs.module.interop.api.EncodedPayload;
+import org.openmrs.module.interop.api.Publisher;
+import org.openmrs.module.interop.utils.GlobalPropertyUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Hands an encoded payload to several publishers at once through
+ * {@link Publisher#publishAsync(FhirContext, EncodedPayload, String, Executor)}, so a slow
+ * destination doesn't hold up the others. Each delivery must be acknowledged within the timeout of
+ * its publisher, set with {@link InteropConstant#GP_DELIVERY_TIMEOUTS}, or it fails with a
+ * {@link DeliveryTimeoutException}. Blocking work runs on the delivery executor, see
+ * {@link ExecutionMode}. Every publisher has a {@link CircuitBreaker} so a destination that is down fails fast instead of
+ * tying up threads until it times out, and may have a {@link RateLimiter} so bursts wait
+ * instead of being throttled by the destination.
+ */
+@Slf4j
+@Component("interop.deliveryCoordinator")
+public class DeliveryCoordinator {
+	
+	private static final int DEFAULT_DELIVERY_THREADS = 8;
+	
+	private static final long DEFAULT_TIMEOUT_MS = 30000;
+	
+	private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	
+	private static final long DEFAULT_OPEN_MS = 30000;
+	
+	private static final long PROBE_CHECK_INTERVAL_MS = 1000;
+	
+	private static final long DEFAULT_RATE_LIMIT_MAX_WAIT_MS = 10000;
+	
+	@Autowired
+	@Qualifier("fhirR4")
+	private FhirContext fhirContext;
+	
+	@Autowired
+	private PublisherRegistry publisherRegistry;
+	
+	private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+	
+	private volatile boolean running;
+	
+	private ExecutorService deliveryExecutor;
+	
+	private Executor sessionExecutor;
+	
+	private ScheduledExecutorService timer;
+	
+	private long defaultTimeoutMs;
+	
+	private Map<String, Long> timeouts = Collections.emptyMap();
+	
+	private Map<String, RateLimiter> rateLimiters = Collections.emptyMap();
+	
+	private int failureThreshold;
+	
+	private long openMs;
+	
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		ExecutionMode executionMode = GlobalPropertyUtils.getEnum(InteropConstant.GP_DELIVERY_EXECUTION_MODE,
+		    ExecutionMode.class, ExecutionMode.AUTO);
+		int deliveryThreads = GlobalPropertyUtils.getInteger(InteropConstant.GP_DELIVERY_THREADS, DEFAULT_DELIVERY_THREADS);
+		defaultTimeoutMs = GlobalPropertyUtils.getLong(InteropConstant.GP_DELIVERY_TIMEOUT_MS, DEFAULT_TIMEOUT_MS);
+		timeouts = parseTimeouts(
+		    Context.getAdministrationService().getGlobalProperty(InteropConstant.GP_DELIVERY_TIMEOUTS, ""));
+		failureThreshold = GlobalPropertyUtils.getInteger(InteropConstant.GP_CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+		    DEFAULT_FAILURE_THRESHOLD);
+		openMs = GlobalPropertyUtils.getLong(InteropConstant.GP_CIRCUIT_BREAKER_OPEN_MS, DEFAULT_OPEN_MS);
+		circuitBreakers.clear();
+		rateLimiters = parseRateLimits(
+		    Context.getAdministrationService().getGlobalProperty(InteropConstant.GP_DELIVERY_RATE_LIMITS, ""),
+		    GlobalPropertyUtils.getLong(InteropConstant.GP_DELIVERY_RATE_LIMIT_MAX_WAIT_MS, DEFAULT_RATE_LIMIT_MAX_WAIT_MS));
+		deliveryExecutor = DeliveryExecutors.newExecutor(executionMode, deliveryThreads, "interop-delivery-");
+		sessionExecutor = withSession(deliveryExecutor);
+		timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "interop-delivery-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.scheduleWithFixedDelay(this::probeOpenCircuits, PROBE_CHECK_INTERVAL_MS, PROBE_CHECK_INTERVAL_MS,
+		    TimeUnit.MILLISECONDS);
+		running = true;
+		log.info("Started interop deliveries on {} threads with a {} ms timeout, overrides {}, rate limits {}",
+		    DeliveryExecutors.resolve(executionMode), defaultTimeoutMs, timeouts, rateLimiters.values());
+	}
+	
+	public synchronized void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		deliveryExecutor.shutdown();
+		timer.shutdownNow();
+	}
+	
+	/**
+	 * Starts delivering the payload to each publisher
+	 *
+	 * @param publishers the publishers to deliver to
+	 * @param payload the encoded resource
+	 * @param serverToken the token used to authenticate with the servers
+	 * @return the pending delivery of each publisher, in the order given
+	 */
+	public Map<Publisher, CompletableFuture<DeliveryReceipt>> publish(List<Publisher> publishers, EncodedPayload payload,
+	        String serverToken) {
+		if (!running) {
+			throw new IllegalStateException("Interop deliveries haven't been started");
+		}
+		Map<Publisher, CompletableFuture<DeliveryReceipt>> deliveries = new LinkedHashMap<>();
+		for (Publisher publisher : publishers) {
+			deliveries.put(publisher,
+			    deliver(publisher, payload.size(),
+			        () -> publisher.publishAsync(fhirContext, payload, serverToken, sessionExecutor)));
+		}
+		return deliveries;
+	}
+	
+	/**
+	 * Starts delivering several payloads to each publisher with
+	 * {@link Publisher#publishBatch(FhirContext, List, String)}, the timeout of a publisher applies to
+	 * the batch as a whole
+	 *
+	 * @param publishers the publishers to deliver to
+	 * @param payloads the encoded resources
+	 * @param serverToken the token used to authenticate with the servers
+	 * @return the pending delivery of each publisher, in the order given
+	 */
+	public Map<Publisher, CompletableFuture<Void>> publishBatch(List<Publisher> publishers, List<EncodedPayload> payloads,
+	        String serverToken) {
+		if (!running) {
+			throw new IllegalStateException("Interop deliveries haven't been started");
+		}
+		Map<Publisher, CompletableFuture<Void>> deliveries = new LinkedHashMap<>();
+		for (Publisher publisher : publishers) {
+			deliveries.put(publisher, publishBatch(publisher, payloads, serverToken, sessionExecutor));
+		}
+		return deliveries;
+	}
+	
+	/**
+	 * Starts delivering several payloads to one publisher on the given executor, e.g. the executor of
+	 * its {@link DeliveryChannel}
+	 *
+	 * @param publisher the publisher to deliver to
+	 * @param payloads the encoded resources
+	 * @param serverToken the token used to authenticate with the server
+	 * @param executor the executor, its threads must have an OpenMRS session, see
+	 *            {@link #withSession(Executor)}
+	 * @return the pending delivery
+	 */
+	public CompletableFuture<Void> publishBatch(Publisher publisher, List<EncodedPayload> payloads, String serverToken,
+	        Executor executor) {
+		if (!running) {
+			throw new IllegalStateException("Interop deliveries haven't been started");
+		}
+		long byteCount = 0;
+		for (EncodedPayload payload : payloads) {
+			byteCount += payload.size();
+		}
+		return deliver(publisher, byteCount, () -> CompletableFuture
+		        .runAsync(() -> publisher.publishBatch(fhirContext, payloads, serverToken), executor));
+	}
+	
+	/**
+	 * @param publisher the publisher
+	 * @return false while the circuit breaker of the publisher is open, its deliveries fail fast with a
+	 *         {@link CircuitBreakerOpenException}
+	 */
+	public boolean isAvailable(Publisher publisher) {
+		return circuitBreakerOf(publisher).isAvailable();
+	}
+	
+	/**
+	 * @param publisher the publisher
+	 * @return the circuit breaker guarding deliveries to the publisher
+	 */
+	public CircuitBreaker circuitBreakerOf(Publisher publisher) {
+		return circuitBreakers.computeIfAbsent(PublisherRegistry.nameOf(publisher),
+		    name -> new CircuitBreaker(ClassUtils.getUserClass(publisher).getSimpleName(), failureThreshold, openMs));
+	}
+	
+	/**
+	 * Starts a delivery once the circuit breaker and the rate limit of the publisher allow it. The
+	 * calling thread waits for its turn under the rate limit, a call is counted as one request.
+	 */
+	private <T> CompletableFuture<T> deliver(Publisher publisher, long byteCount,
+	        Supplier<CompletableFuture<T>> delivery) {
+		CircuitBreaker circuitBreaker = circuitBreakerOf(publisher);
+		if (!circuitBreaker.isAvailable()) {
+			return rejected(new CircuitBreakerOpenException(circuitBreaker.getName()));
+		}
+		RateLimiter rateLimiter = rateLimiterOf(publisher);
+		if (rateLimiter != null) {
+			long wait = rateLimiter.reserve(1, byteCount);
+			if (wait < 0) {
+				return rejected(new RateLimitExceededException(circuitBreaker.getName()));
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return rejected(new RateLimitExceededException(circuitBreaker.getName()));
+			}
+		}
+		if (!circuitBreaker.tryAcquire()) {
+			return rejected(new CircuitBreakerOpenException(circuitBreaker.getName()));
+		}
+		CompletableFuture<T> started;
+		try {
+			started = delivery.get();
+		}
+		catch (Exception e) {
+			started = new CompletableFuture<>();
+			started.completeExceptionally(e);
+		}
+		CompletableFuture<T> timed = withTimeout(started, timeoutOf(publisher), circuitBreaker.getName(), timer,
+		    sessionExecutor);
+		timed.whenComplete((value, error) -> {
+			if (error == null) {
+				circuitBreaker.recordSuccess();
+			} else {
+				circuitBreaker.recordFailure();
+			}
+		});
+		return timed;
+	}
+	
+	private static <T> CompletableFuture<T> rejected(Exception reason) {
+		CompletableFuture<T> rejected = new CompletableFuture<>();
+		rejected.completeExceptionally(reason);
+		return rejected;
+	}
+	
+	/**
+	 * @param publisher the publisher
+	 * @return the rate limiter of the publisher, or null if it isn't rate limited
+	 */
+	public RateLimiter rateLimiterOf(Publisher publisher) {
+		Class<?> publisherClass = ClassUtils.getUserClass(publisher);
+		RateLimiter rateLimiter = rateLimiters.get(publisherClass.getSimpleName());
+		return rateLimiter != null ? rateLimiter : rateLimiters.get(publisherClass.getName());
+	}
+	
+	/**
+	 * Checks the connection of publishers whose circuit has been open long enough, at most one probe
+	 * per publisher runs at a time
+	 */
+	private void probeOpenCircuits() {
+		for (Publisher publisher : publisherRegistry.getPublishers()) {
+			CircuitBreaker circuitBreaker = circuitBreakers.get(PublisherRegistry.nameOf(publisher));
+			if (circuitBreaker == null || !circuitBreaker.tryStartProbe()) {
+				continue;
+			}
+			sessionExecutor.execute(() -> {
+				boolean reachable = false;
+				try {
+					reachable = publisher.verifyConnection();
+				}
+				catch (Exception e) {
+					log.debug("Probe of {} failed", circuitBreaker.getName(), e);
+				}
+				finally {
+					circuitBreaker.recordProbe(reachable);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @param publisher the publisher
+	 * @return the delivery timeout of the publisher in milliseconds
+	 */
+	public long timeoutOf(Publisher publisher) {
+		Class<?> publisherClass = ClassUtils.getUserClass(publisher);
+		Long timeout = timeouts.get(publisherClass.getSimpleName());
+		if (timeout == null) {
+			timeout = timeouts.get(publisherClass.getName());
+		}
+		return timeout != null ? timeout : defaultTimeoutMs;
+	}
+	
+	/**
+	 * Runs each task in an OpenMRS session of its own. Delivery threads aren't daemon threads,
+	 * publishers only need a session to read their settings.
+	 *
+	 * @param executor the executor
+	 * @return an executor opening a session around each task
+	 */
+	public static Executor withSession(Executor executor) {
+		return task -> executor.execute(() -> {
+			Context.openSession();
+			try {
+				task.run();
+			}
+			finally {
+				Context.closeSession();
+			}
+		});
+	}
+	
+	/**
+	 * Waits for a delivery
+	 *
+	 * @param delivery the delivery
+	 * @return null if it was acknowledged, otherwise the reason it failed
+	 */
+	public static Exception await(CompletableFuture<?> delivery) {
+		try {
+			delivery.get();
+			return null;
+		}
+		catch (ExecutionException | CompletionException e) {
+			return e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+		catch (CancellationException e) {
+			return e;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return e;
+		}
+	}
+	
+	/**
+	 * Parses per publisher timeouts e.g. <code>KafkaConnector:10000,OpenhimConnector:60000</code>,
+	 * invalid entries are skipped
+	 *
+	 * @param value the global property value
+	 * @return the timeouts in milliseconds keyed by publisher class name
+	 */
+	static Map<String, Long> parseTimeouts(String value) {
+		Map<String, Long> parsed = new HashMap<>();
+		for (String entry : StringUtils.split(StringUtils.defaultString(value), ',')) {
+			String[] parts = StringUtils.split(entry, ':');
+			if (parts.length != 2 || !StringUtils.isNumeric(parts[1].trim())) {
+				log.warn("Ignoring invalid delivery timeout '{}'", entry);
+				continue;
+			}
+			parsed.put(parts[0].trim(), Long.parseLong(parts[1].trim()));
+		}
+		return parsed;
+	}
+	
+	/**
+	 * Parses per publisher rate limits as
+	 * <code>publisher:requestsPerSecond[:bytesPerSecond]</code> e.g.
+	 * <code>OpenhimConnector:10:1048576,KafkaConnector:500</code>, invalid entries are skipped
+	 *
+	 * @param value the global property value
+	 * @param maxWaitMs how long a delivery may wait for its turn
+	 * @return the rate limiters keyed by publisher class name
+	 */
+	static Map<String, RateLimiter> parseRateLimits(String value, long maxWaitMs) {
+		Map<String, RateLimiter> parsed = new HashMap<>();
+		for (String entry : StringUtils.split(StringUtils.defaultString(value), ',')) {
+			String[] parts = StringUtils.stripAll(StringUtils.split(entry, ':'));
+			try {
+				if (parts.length < 2 || parts.length > 3) {
+					throw new NumberFormatException();
+				}
+				double bytesPerSecond = parts.length == 3 ? Double.parseDouble(parts[2]) : 0;
+				parsed.put(parts[0], new RateLimiter(parts[0], Double.parseDouble(parts[1]), bytesPerSecond, maxWaitMs));
+			}
+			catch (NumberFormatException e) {
+				log.warn("Ignoring invalid delivery rate limit '{}'", entry);
+			}
+		}
+		return parsed;
+	}
+	
+	/**
+	 * Completes exceptionally with a {@link TimeoutException} if the delivery isn't done in time. The
+	 * delivery itself keeps running, its outcome is ignored.
+	 */
+	static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> delivery, long timeoutMs, String name,
+	        ScheduledExecutorService timer) {
+		return withTimeout(delivery, timeoutMs, name, timer, Runnable::run);
+	}
+	
+	/**
+	 * Completes exceptionally with a {@link DeliveryTimeoutException} if the delivery isn't done in
+	 * time. The delivery itself keeps running, callers learn of a late success through the exception.
+	 *
+	 * @param lateExecutor runs the actions waiting for a late success
+	 */
+	static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> delivery, long timeoutMs, String name,
+	        ScheduledExecutorService timer, Executor lateExecutor) {
+		if (timeoutMs <= 0 || delivery.isDone()) {
+			return delivery;
+		}
+		CompletableFuture<T> result = new CompletableFuture<>();
+		ScheduledFuture<?> timeout = timer.schedule(() -> result.completeExceptionally(new DeliveryTimeoutException(
+		        name + " didn't acknowledge the delivery within " + timeoutMs + " ms", delivery, lateExecutor)),
+		    timeoutMs, TimeUnit.MILLISECONDS);
+		delivery.whenComplete((value, error) -> {
+			timeout.cancel(false);
+			if (error != null) {
+				result.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+				        ? error.getCause() : error);
+			} else {
+				result.complete(value);
+			}
+		});
+		return result;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates the executors used for blocking delivery work. Virtual threads are looked up reflectively
+ * so the module still builds for and runs on Java 8, falling back to a fixed pool of platform
+ * threads when the runtime doesn't have them.
+ */
+@Slf4j
+public class DeliveryExecutors {
+	
+	private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadFactoryMethod();
+	
+	private DeliveryExecutors() {
+	}
+	
+	/**
+	 * @return true if the running JVM supports virtual threads
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+	}
+	
+	/**
+	 * Resolves {@link ExecutionMode#AUTO} and unsupported {@link ExecutionMode#VIRTUAL} to the mode
+	 * that will actually be used
+	 *
+	 * @param mode the configured mode
+	 * @return {@link ExecutionMode#VIRTUAL} or {@link ExecutionMode#PLATFORM}
+	 */
+	public static ExecutionMode resolve(ExecutionMode mode) {
+		if (mode == ExecutionMode.PLATFORM) {
+			return ExecutionMode.PLATFORM;
+		}
+		if (isVirtualThreadsSupported()) {
+			return ExecutionMode.VIRTUAL;
+		}
+		if (mode == ExecutionMode.VIRTUAL) {
+			log.warn("Virtual threads need Java 21 or later, using platform threads on Java {}",
+			    System.getProperty("java.version"));
+		}
+		return ExecutionMode.PLATFORM;
+	}
+	
+	/**
+	 * @param mode the configured mode
+	 * @param platformThreads the pool size when platform threads are used
+	 * @param namePrefix the thread name prefix
+	 * @return a new executor, the caller shuts it down
+	 */
+	public static ExecutorService newExecutor(ExecutionMode mode, int platformThreads, String namePrefix) {
+		if (resolve(mode) == ExecutionMode.VIRTUAL) {
+			try {
+				return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+			}
+			catch (ReflectiveOperationException e) {
+				log.warn("Unable to create a virtual thread executor, using platform threads", e);
+			}
+		}
+		return Executors.newFixedThreadPool(Math.max(1, platformThreads), daemonThreadFactory(namePrefix));
+	}
+	
+	private static ThreadFactory daemonThreadFactory(String namePrefix) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+	
+	private static Method findVirtualThreadFactoryMethod() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
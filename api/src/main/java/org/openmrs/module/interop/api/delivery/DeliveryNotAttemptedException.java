@@ -0,0 +1,21 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+/**
+ * Thrown for a delivery that was held back before reaching the publisher, the payload should be kept
+ * and delivered later without counting it as a failed attempt
+ */
+public class DeliveryNotAttemptedException extends RuntimeException {
+	
+	public DeliveryNotAttemptedException(String message) {
+		super(message);
+	}
+}
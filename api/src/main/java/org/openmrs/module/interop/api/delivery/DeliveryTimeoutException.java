@@ -0,0 +1,42 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Thrown for a delivery the publisher didn't acknowledge in time. A payload that was sent can't be
+ * called back, so the delivery keeps running and may still succeed, see
+ * {@link #whenDeliveredLate(Runnable)}.
+ */
+public class DeliveryTimeoutException extends TimeoutException {
+	
+	private final transient CompletableFuture<?> delivery;
+	
+	private final transient Executor executor;
+	
+	public DeliveryTimeoutException(String message, CompletableFuture<?> delivery, Executor executor) {
+		super(message);
+		this.delivery = delivery;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Runs an action once the delivery succeeds after all, e.g. to record it so its retry is dropped.
+	 * Nothing runs if it fails.
+	 *
+	 * @param action the action, run on an executor with an OpenMRS session
+	 */
+	public void whenDeliveredLate(Runnable action) {
+		delivery.thenRunAsync(action, executor);
+	}
+}
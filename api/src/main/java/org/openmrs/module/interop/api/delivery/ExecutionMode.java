@@ -0,0 +1,28 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+/**
+ * How blocking delivery work is run
+ */
+public enum ExecutionMode {
+	/**
+	 * A fixed pool of platform threads
+	 */
+	PLATFORM,
+	/**
+	 * A virtual thread per task, needs a Java 21 or later runtime
+	 */
+	VIRTUAL,
+	/**
+	 * Virtual threads when the runtime supports them, platform threads otherwise
+	 */
+	AUTO
+}
@@ -0,0 +1,134 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.api.InteropService;
+import org.openmrs.module.interop.api.Publisher;
+import org.openmrs.module.interop.utils.GlobalPropertyUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes outbox entries in the background. Observers only write to the outbox, one entry per
+ * enabled publisher, so event processing doesn't wait on the network, and entries left behind by a
+ * restart are picked up on the next run. Every publisher has a {@link DeliveryChannel} of its own
+ * that drains its entries in batches at its own pace, so an outage of one destination never slows
+ * delivery to the others. A delivery that fails is moved to the dead letter store, see
+ * {@link DeadLetterRetryScheduler}.
+ */
+@Slf4j
+@Component("interop.outboxDrainer")
+public class OutboxDrainer {
+	
+	private static final int DEFAULT_BATCH_SIZE = 50;
+	
+	private static final long DEFAULT_POLL_INTERVAL_MS = 5000;
+	
+	private static final int DEFAULT_DELIVERY_THREADS = 4;
+	
+	@Autowired
+	private InteropService interopService;
+	
+	@Autowired
+	private DeadLetterRetryScheduler deadLetterRetryScheduler;
+	
+	@Autowired
+	private PublisherRegistry publisherRegistry;
+	
+	@Autowired
+	private DeliveryCoordinator deliveryCoordinator;
+	
+	@Autowired
+	private ContentDeduplicator contentDeduplicator;
+	
+	@Getter
+	private volatile boolean running;
+	
+	private volatile Map<String, DeliveryChannel> channels = Collections.emptyMap();
+	
+	public synchronized void start(DaemonToken daemonToken) {
+		if (running || !Boolean.parseBoolean(
+		    Context.getAdministrationService().getGlobalProperty(InteropConstant.GP_OUTBOX_ENABLED, "true"))) {
+			return;
+		}
+		int batchSize = Math.max(1,
+		    GlobalPropertyUtils.getInteger(InteropConstant.GP_OUTBOX_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+		long pollIntervalMs = Math.max(100,
+		    GlobalPropertyUtils.getLong(InteropConstant.GP_OUTBOX_POLL_INTERVAL_MS, DEFAULT_POLL_INTERVAL_MS));
+		ExecutionMode executionMode = GlobalPropertyUtils.getEnum(InteropConstant.GP_DELIVERY_EXECUTION_MODE,
+		    ExecutionMode.class, ExecutionMode.AUTO);
+		int deliveryThreads = Math.max(1,
+		    GlobalPropertyUtils.getInteger(InteropConstant.GP_DELIVERY_THREADS, DEFAULT_DELIVERY_THREADS));
+		// a fixed limit starts at the maximum and has nowhere to grow
+		boolean adaptive = Boolean.parseBoolean(Context.getAdministrationService()
+		        .getGlobalProperty(InteropConstant.GP_DELIVERY_ADAPTIVE_CONCURRENCY, "true"));
+		
+		Map<String, DeliveryChannel> started = new LinkedHashMap<>();
+		for (Publisher publisher : publisherRegistry.getPublishers()) {
+			DeliveryChannel channel = new DeliveryChannel(publisher, interopService, deliveryCoordinator,
+			        deadLetterRetryScheduler, contentDeduplicator,
+			        DeliveryExecutors.newExecutor(executionMode, deliveryThreads,
+			            "interop-delivery-" + publisher.getClass().getSimpleName() + "-"),
+			        new AdaptiveConcurrencyLimit(1, deliveryThreads, adaptive ? 1 : deliveryThreads), batchSize,
+			        pollIntervalMs);
+			channel.start(daemonToken);
+			started.put(channel.getDestination(), channel);
+		}
+		channels = Collections.unmodifiableMap(started);
+		running = true;
+		log.info("Started interop delivery channels {} with batch size {} and up to {} {} workers each",
+		    started.keySet(), batchSize, deliveryThreads, DeliveryExecutors.resolve(executionMode));
+	}
+	
+	public synchronized void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		for (DeliveryChannel channel : channels.values()) {
+			channel.shutdown();
+		}
+		log.info("Stopped interop delivery channels");
+	}
+	
+	/**
+	 * Tells the channels new entries are waiting so they don't sit until the next poll
+	 */
+	public void wakeUp() {
+		for (DeliveryChannel channel : channels.values()) {
+			channel.wakeUp();
+		}
+	}
+	
+	/**
+	 * @return the delivery channel of each registered publisher
+	 */
+	public Collection<DeliveryChannel> getChannels() {
+		return channels.values();
+	}
+	
+	/**
+	 * @param destination the publisher name, see {@link PublisherRegistry#nameOf(Publisher)}
+	 * @return the delivery channel of the publisher, or null if it has none
+	 */
+	public DeliveryChannel getChannel(String destination) {
+		return channels.get(destination);
+	}
+}
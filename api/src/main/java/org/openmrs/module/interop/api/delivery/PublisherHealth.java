@@ -0,0 +1,42 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import lombok.Getter;
+
+/**
+ * The outcome of the last connection check of a publisher, see {@link PublisherHealthMonitor}
+ */
+@Getter
+public final class PublisherHealth {
+	
+	private final String name;
+	
+	private final boolean healthy;
+	
+	private final long checkedAt;
+	
+	private final long durationMillis;
+	
+	private final String error;
+	
+	public PublisherHealth(String name, boolean healthy, long checkedAt, long durationMillis, String error) {
+		this.name = name;
+		this.healthy = healthy;
+		this.checkedAt = checkedAt;
+		this.durationMillis = durationMillis;
+		this.error = error;
+	}
+	
+	@Override
+	public String toString() {
+		return name + (healthy ? " healthy" : " unhealthy: " + error) + " (" + durationMillis + " ms)";
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.api.Publisher;
+import org.openmrs.module.interop.utils.GlobalPropertyUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Checks the connection of every enabled publisher in the background, right after the module starts
+ * and then periodically, so starting the module never waits for a destination to answer. Each check
+ * must finish within {@link InteropConstant#GP_HEALTH_CHECK_TIMEOUT_MS}, a check that is still
+ * running isn't started again. The outcome of the last check is kept, and a failed check opens the
+ * {@link CircuitBreaker} of the publisher so deliveries park until it is reachable again.
+ */
+@Slf4j
+@Component("interop.publisherHealthMonitor")
+public class PublisherHealthMonitor {
+	
+	private static final long DEFAULT_INTERVAL_MS = 60000;
+	
+	private static final long DEFAULT_TIMEOUT_MS = 10000;
+	
+	@Autowired
+	private PublisherRegistry publisherRegistry;
+	
+	@Autowired
+	private DeliveryCoordinator deliveryCoordinator;
+	
+	private final Map<String, PublisherHealth> health = new ConcurrentHashMap<>();
+	
+	private final Set<String> checking = ConcurrentHashMap.newKeySet();
+	
+	private ScheduledExecutorService scheduler;
+	
+	private ExecutorService checkExecutor;
+	
+	private Executor sessionExecutor;
+	
+	private long timeoutMs;
+	
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		long intervalMs = GlobalPropertyUtils.getLong(InteropConstant.GP_HEALTH_CHECK_INTERVAL_MS, DEFAULT_INTERVAL_MS);
+		timeoutMs = GlobalPropertyUtils.getLong(InteropConstant.GP_HEALTH_CHECK_TIMEOUT_MS, DEFAULT_TIMEOUT_MS);
+		health.clear();
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "interop-health-check");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// a check that doesn't return holds its thread, so the pool grows instead of queueing
+		AtomicInteger threadCount = new AtomicInteger();
+		checkExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "interop-health-check-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		sessionExecutor = DeliveryCoordinator.withSession(checkExecutor);
+		if (intervalMs > 0) {
+			scheduler.scheduleWithFixedDelay(this::checkAll, 0, intervalMs, TimeUnit.MILLISECONDS);
+		} else {
+			scheduler.execute(this::checkAll);
+		}
+		log.info("Started interop health checks every {} ms with a {} ms timeout", intervalMs, timeoutMs);
+	}
+	
+	public synchronized void shutdown() {
+		if (scheduler == null) {
+			return;
+		}
+		scheduler.shutdownNow();
+		checkExecutor.shutdownNow();
+		scheduler = null;
+	}
+	
+	/**
+	 * @return the outcome of the last check of each publisher checked so far
+	 */
+	public Collection<PublisherHealth> getHealth() {
+		return Collections.unmodifiableCollection(health.values());
+	}
+	
+	/**
+	 * @param publisher the publisher
+	 * @return the outcome of its last check, or null if it hasn't been checked yet
+	 */
+	public PublisherHealth getHealth(Publisher publisher) {
+		return health.get(PublisherRegistry.nameOf(publisher));
+	}
+	
+	/**
+	 * @param publisher the publisher
+	 * @return false if its last check failed, true if it succeeded or hasn't finished yet
+	 */
+	public boolean isHealthy(Publisher publisher) {
+		PublisherHealth last = getHealth(publisher);
+		return last == null || last.isHealthy();
+	}
+	
+	private void checkAll() {
+		Context.openSession();
+		try {
+			for (Publisher publisher : publisherRegistry.getEnabledPublishers()) {
+				check(publisher);
+			}
+		}
+		catch (Exception e) {
+			log.error("Unable to check the interop publishers", e);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+	
+	private void check(Publisher publisher) {
+		String key = PublisherRegistry.nameOf(publisher);
+		if (!checking.add(key)) {
+			log.debug("The previous check of {} hasn't returned yet", key);
+			return;
+		}
+		String name = ClassUtils.getUserClass(publisher).getSimpleName();
+		long startedAt = System.currentTimeMillis();
+		CompletableFuture<Boolean> verification = CompletableFuture.supplyAsync(publisher::verifyConnection,
+		    sessionExecutor);
+		verification.whenComplete((reachable, error) -> checking.remove(key));
+		DeliveryCoordinator.withTimeout(verification, timeoutMs, name, scheduler).whenComplete((reachable, error) -> {
+			long duration = System.currentTimeMillis() - startedAt;
+			if (error == null && Boolean.TRUE.equals(reachable)) {
+				health.put(key, new PublisherHealth(name, true, startedAt, duration, null));
+				log.debug("{} verification was successful", name);
+				return;
+			}
+			String reason;
+			if (error instanceof TimeoutException) {
+				reason = "no answer within " + timeoutMs + " ms";
+			} else {
+				reason = error != null ? error.toString() : "the connection check failed";
+			}
+			health.put(key, new PublisherHealth(name, false, startedAt, duration, reason));
+			log.warn("{} isn't reachable: {}", name, reason);
+			deliveryCoordinator.circuitBreakerOf(publisher).trip("its connection check failed");
+		});
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.module.interop.api.Publisher;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Holds the Spring managed {@link Publisher} beans, e.g. the Kafka and OpenHIM connectors, as long
+ * lived singletons. The registry is built once and rebuilt whenever the application context is
+ * refreshed, which OpenMRS does when modules are started or stopped, so publishing no longer scans
+ * the classpath and instantiates every publisher.
+ */
+@Slf4j
+@Component("interop.publisherRegistry")
+public class PublisherRegistry implements ApplicationContextAware, ApplicationListener<ContextRefreshedEvent> {
+	
+	private ApplicationContext applicationContext;
+	
+	private volatile Map<String, Publisher> publishers = Collections.emptyMap();
+	
+	@Override
+	public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+		this.applicationContext = applicationContext;
+	}
+	
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		refresh();
+	}
+	
+	/**
+	 * Rebuilds the registry from the publisher beans of the application context
+	 */
+	public void refresh() {
+		if (applicationContext != null) {
+			refresh(applicationContext.getBeansOfType(Publisher.class).values());
+		}
+	}
+	
+	/**
+	 * Replaces the registered publishers
+	 *
+	 * @param beans the publishers
+	 */
+	public void refresh(Collection<? extends Publisher> beans) {
+		Map<String, Publisher> registered = new LinkedHashMap<>();
+		for (Publisher publisher : beans) {
+			registered.put(nameOf(publisher), publisher);
+		}
+		publishers = Collections.unmodifiableMap(registered);
+		log.info("Registered interop publishers {}", registered.keySet());
+	}
+	
+	/**
+	 * Closes every registered publisher, see {@link Publisher#close()}
+	 */
+	public void close() {
+		for (Publisher publisher : publishers.values()) {
+			try {
+				publisher.close();
+			}
+			catch (Exception e) {
+				log.warn("Unable to close {}", nameOf(publisher), e);
+			}
+		}
+	}
+	
+	/**
+	 * @return all registered publishers, enabled or not
+	 */
+	public Collection<Publisher> getPublishers() {
+		return publishers.values();
+	}
+	
+	/**
+	 * @return the publishers that are currently enabled
+	 */
+	public List<Publisher> getEnabledPublishers() {
+		List<Publisher> enabled = new ArrayList<>();
+		for (Publisher publisher : publishers.values()) {
+			if (publisher.isEnabled()) {
+				enabled.add(publisher);
+			}
+		}
+		return enabled;
+	}
+	
+	/**
+	 * @param name the class name of the publisher, see {@link #nameOf(Publisher)}
+	 * @return the publisher, or null if it isn't registered
+	 */
+	public Publisher getPublisher(String name) {
+		return publishers.get(name);
+	}
+	
+	/**
+	 * @param publisher the publisher
+	 * @return the name a publisher is registered and recorded under, the class name of the bean
+	 *         without any Spring proxy suffix
+	 */
+	public static String nameOf(Publisher publisher) {
+		return ClassUtils.getUserClass(publisher).getName();
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import lombok.Getter;
+
+/**
+ * Limits the requests and bytes per second sent to one publisher with a token bucket each, the
+ * buckets hold one second worth of tokens so short bursts up to the limit go straight through.
+ * Callers over the limit wait their turn, up to a maximum wait, instead of being sent and throttled
+ * by the destination.
+ */
+public class RateLimiter {
+	
+	@Getter
+	private final String name;
+	
+	@Getter
+	private final double requestsPerSecond;
+	
+	@Getter
+	private final double bytesPerSecond;
+	
+	private final long maxWaitNanos;
+	
+	private final TokenBucket requests;
+	
+	private final TokenBucket bytes;
+	
+	/**
+	 * @param name the publisher name
+	 * @param requestsPerSecond the request limit, 0 or less for none
+	 * @param bytesPerSecond the byte limit, 0 or less for none
+	 * @param maxWaitMs how long a caller may wait for its turn
+	 */
+	public RateLimiter(String name, double requestsPerSecond, double bytesPerSecond, long maxWaitMs) {
+		this(name, requestsPerSecond, bytesPerSecond, maxWaitMs, System::nanoTime);
+	}
+	
+	RateLimiter(String name, double requestsPerSecond, double bytesPerSecond, long maxWaitMs, LongSupplier nanoClock) {
+		this.name = name;
+		this.requestsPerSecond = requestsPerSecond;
+		this.bytesPerSecond = bytesPerSecond;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+		this.requests = requestsPerSecond > 0 ? new TokenBucket(requestsPerSecond, requestsPerSecond, nanoClock) : null;
+		this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond, nanoClock) : null;
+	}
+	
+	/**
+	 * Reserves the capacity for a request, either both limits are charged or neither
+	 *
+	 * @param requestCount the number of requests
+	 * @param byteCount the number of bytes sent
+	 * @return how long in nanoseconds the caller must wait before sending, or -1 if that is longer than
+	 *         the maximum wait, in which case nothing is reserved
+	 */
+	public synchronized long reserve(int requestCount, long byteCount) {
+		long wait = Math.max(requests != null ? requests.waitFor(requestCount) : 0,
+		    bytes != null ? bytes.waitFor(byteCount) : 0);
+		if (wait > maxWaitNanos) {
+			return -1;
+		}
+		if (requests != null) {
+			requests.take(requestCount);
+		}
+		if (bytes != null) {
+			bytes.take(byteCount);
+		}
+		return wait;
+	}
+	
+	@Override
+	public String toString() {
+		return name + " " + requestsPerSecond + " req/s " + bytesPerSecond + " B/s";
+	}
+}
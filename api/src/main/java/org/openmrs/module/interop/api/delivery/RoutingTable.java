@@ -0,0 +1,158 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.api.Publisher;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Decides which publishers a resource goes to from the {@code interop.routing.rules} global
+ * property, e.g. {@code Observation=KafkaConnector;Bundle@<encounter type uuid>=OpenhimConnector},
+ * rules are separated by semicolons and publishers by commas. A rule for the resource type and
+ * encounter type takes precedence over one for the resource type alone, then the {@code *} rule
+ * applies. Without a matching rule a resource goes to every enabled publisher, and a rule without
+ * publishers, e.g. {@code Patient=}, drops the resource. The rules are cached and replaced with the
+ * new value when the global property changes.
+ */
+@Slf4j
+@Component("interop.routingTable")
+public class RoutingTable implements GlobalPropertyListener {
+	
+	static final String ANY_RESOURCE_TYPE = "*";
+	
+	private volatile Map<String, Set<String>> rules;
+	
+	@PostConstruct
+	public void register() {
+		Context.getAdministrationService().addGlobalPropertyListener(this);
+	}
+	
+	@PreDestroy
+	public void unregister() {
+		Context.getAdministrationService().removeGlobalPropertyListener(this);
+	}
+	
+	/**
+	 * @param resourceType the FHIR resource type
+	 * @param encounterTypeUuid the encounter type the resource was created for, or null
+	 * @param enabledPublishers the publishers to choose from
+	 * @return the publishers the resource goes to, empty if it shouldn't be published
+	 */
+	public List<Publisher> route(String resourceType, String encounterTypeUuid, List<Publisher> enabledPublishers) {
+		return route(getRules(), resourceType, encounterTypeUuid, enabledPublishers);
+	}
+	
+	static List<Publisher> route(Map<String, Set<String>> rules, String resourceType, String encounterTypeUuid,
+	        List<Publisher> enabledPublishers) {
+		Set<String> destinations = null;
+		if (encounterTypeUuid != null) {
+			destinations = rules.get(resourceType + "@" + encounterTypeUuid);
+		}
+		if (destinations == null) {
+			destinations = rules.get(resourceType);
+		}
+		if (destinations == null) {
+			destinations = rules.get(ANY_RESOURCE_TYPE);
+		}
+		if (destinations == null) {
+			return enabledPublishers;
+		}
+		List<Publisher> routed = new ArrayList<>(enabledPublishers.size());
+		for (Publisher publisher : enabledPublishers) {
+			Class<?> publisherClass = ClassUtils.getUserClass(publisher);
+			if (destinations.contains(publisherClass.getSimpleName())
+			        || destinations.contains(publisherClass.getName())) {
+				routed.add(publisher);
+			}
+		}
+		return routed;
+	}
+	
+	public Map<String, Set<String>> getRules() {
+		Map<String, Set<String>> current = rules;
+		if (current == null) {
+			Map<String, Set<String>> loaded = parseRules(
+			    Context.getAdministrationService().getGlobalProperty(InteropConstant.GP_ROUTING_RULES, ""));
+			synchronized (this) {
+				// a change that came in meanwhile wins over what was read
+				if (rules == null) {
+					rules = loaded;
+				}
+				current = rules;
+			}
+		}
+		return current;
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return InteropConstant.GP_ROUTING_RULES.equals(propertyName);
+	}
+	
+	/**
+	 * The change isn't committed yet, reading the global property now could return the old value
+	 */
+	@Override
+	public synchronized void globalPropertyChanged(GlobalProperty newValue) {
+		rules = parseRules(newValue.getPropertyValue());
+	}
+	
+	@Override
+	public synchronized void globalPropertyDeleted(String propertyName) {
+		rules = parseRules("");
+	}
+	
+	/**
+	 * Parses rules in the form {@code Type[@encounterTypeUuid]=Publisher,Publisher;...}
+	 *
+	 * @param value the global property value
+	 * @return the publisher names by resource type, or resource type and encounter type
+	 */
+	static Map<String, Set<String>> parseRules(String value) {
+		Map<String, Set<String>> parsed = new HashMap<>();
+		for (String rule : StringUtils.split(StringUtils.defaultString(value), ';')) {
+			int separator = rule.indexOf('=');
+			String key = separator > 0 ? StringUtils.deleteWhitespace(rule.substring(0, separator)) : "";
+			if (key.isEmpty() || key.startsWith("@") || key.endsWith("@")) {
+				if (StringUtils.isNotBlank(rule)) {
+					log.warn("Ignoring invalid routing rule '{}'", rule);
+				}
+				continue;
+			}
+			Set<String> destinations = new HashSet<>();
+			for (String destination : StringUtils.split(rule.substring(separator + 1), ',')) {
+				if (StringUtils.isNotBlank(destination)) {
+					destinations.add(destination.trim());
+				}
+			}
+			parsed.put(key, Collections.unmodifiableSet(destinations));
+		}
+		log.debug("Routing rules {}", parsed);
+		return Collections.unmodifiableMap(parsed);
+	}
+}
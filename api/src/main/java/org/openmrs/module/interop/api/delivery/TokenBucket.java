@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Tokens refill at a steady rate up to the capacity of the bucket. Takes may overdraw the bucket, a
+ * caller waits until the tokens it took would have been available. A request larger than the
+ * capacity could never find that many tokens, it only waits for a full bucket and the callers after
+ * it pay off the overdraft.
+ */
+class TokenBucket {
+	
+	private final double tokensPerNano;
+	
+	private final double capacity;
+	
+	private final LongSupplier nanoClock;
+	
+	private double tokens;
+	
+	private long refilledAt;
+	
+	TokenBucket(double tokensPerSecond, double capacity, LongSupplier nanoClock) {
+		this.tokensPerNano = tokensPerSecond / 1_000_000_000d;
+		this.capacity = capacity;
+		this.nanoClock = nanoClock;
+		this.tokens = capacity;
+		this.refilledAt = nanoClock.getAsLong();
+	}
+	
+	/**
+	 * @param amount the tokens wanted
+	 * @return how long in nanoseconds until the tokens are available, or the bucket is full if it can't
+	 *         hold them, 0 if they are available now
+	 */
+	long waitFor(double amount) {
+		refill();
+		double missing = Math.min(amount, capacity) - tokens;
+		return missing <= 0 ? 0 : (long) Math.ceil(missing / tokensPerNano);
+	}
+	
+	void take(double amount) {
+		refill();
+		tokens -= amount;
+	}
+	
+	private void refill() {
+		long now = nanoClock.getAsLong();
+		tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+		refilledAt = now;
+	}
+}
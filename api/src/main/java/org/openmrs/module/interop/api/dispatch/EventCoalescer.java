@@ -0,0 +1,177 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.utils.GlobalPropertyUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collapses bursts of events for the same entity into one. The first event for a key opens a window,
+ * events for the same key arriving within the window replace the pending one, and when the window
+ * closes only the latest event is handed on. The timer never waits: an event that can't be handed on
+ * without waiting stays pending for another window, where a newer event for its key may still replace
+ * it.
+ */
+@Slf4j
+@Component("interop.eventCoalescer")
+public class EventCoalescer {
+	
+	private static final long DEFAULT_WINDOW_MS = 1000;
+	
+	private static final int DEFAULT_MAX_PENDING = 1000;
+	
+	private final Map<String, PendingAction> pending = new ConcurrentHashMap<>();
+	
+	private final AtomicLong coalescedEvents = new AtomicLong();
+	
+	private ScheduledExecutorService scheduler;
+	
+	@Getter
+	private long windowMs;
+	
+	private int maxPending;
+	
+	private volatile boolean running;
+	
+	public void start() {
+		start(GlobalPropertyUtils.getLong(InteropConstant.GP_DISPATCH_COALESCE_WINDOW_MS, DEFAULT_WINDOW_MS),
+		    GlobalPropertyUtils.getInteger(InteropConstant.GP_DISPATCH_QUEUE_SIZE, DEFAULT_MAX_PENDING));
+	}
+	
+	synchronized void start(long windowMs, int maxPending) {
+		if (running) {
+			return;
+		}
+		this.windowMs = windowMs;
+		this.maxPending = maxPending;
+		if (windowMs > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "interop-coalescer");
+				thread.setDaemon(true);
+				return thread;
+			});
+			running = true;
+		}
+		log.info("Interop event coalescing window is {} ms", windowMs);
+	}
+	
+	/**
+	 * Stops the timer and hands on every pending event straight away, events submitted from now on run
+	 * immediately
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			scheduler.shutdownNow();
+		}
+		for (String key : pending.keySet()) {
+			PendingAction action = pending.remove(key);
+			if (action != null) {
+				run(key, action.action);
+			}
+		}
+	}
+	
+	/**
+	 * Submits an event for the given key. Runs the action immediately when coalescing is disabled or
+	 * too many keys are already pending, which pushes back on the caller.
+	 *
+	 * @param key the entity key e.g. the observer, class name and UUID
+	 * @param handOn hands the latest event on once the window closes without waiting, returns false if
+	 *            it couldn't, e.g. because the queue it goes to is full
+	 * @param action hands the event on, waiting if needed, when it isn't coalesced
+	 */
+	public void submit(String key, BooleanSupplier handOn, Runnable action) {
+		// checked under the lock of shutdown, so an event is never left to a timer that was stopped
+		synchronized (this) {
+			if (running && pending.size() < maxPending) {
+				if (pending.put(key, new PendingAction(handOn, action)) == null) {
+					scheduler.schedule(() -> fire(key), windowMs, TimeUnit.MILLISECONDS);
+				} else {
+					coalescedEvents.incrementAndGet();
+				}
+				return;
+			}
+		}
+		action.run();
+	}
+	
+	public long getCoalescedEvents() {
+		return coalescedEvents.get();
+	}
+	
+	public int getPendingEvents() {
+		return pending.size();
+	}
+	
+	private void fire(String key) {
+		PendingAction action = pending.remove(key);
+		if (action == null) {
+			return;
+		}
+		boolean handedOn;
+		try {
+			handedOn = action.handOn.getAsBoolean();
+		}
+		catch (Exception e) {
+			log.error("Unable to hand on coalesced event {}", key, e);
+			return;
+		}
+		if (handedOn) {
+			return;
+		}
+		synchronized (this) {
+			if (running) {
+				// an event submitted meanwhile is newer and has its own timer
+				if (pending.putIfAbsent(key, action) == null) {
+					scheduler.schedule(() -> fire(key), windowMs, TimeUnit.MILLISECONDS);
+				}
+				return;
+			}
+		}
+		// shutdown already handed on what was pending
+		run(key, action.action);
+	}
+	
+	private void run(String key, Runnable action) {
+		try {
+			action.run();
+		}
+		catch (Exception e) {
+			log.error("Unable to hand on coalesced event {}", key, e);
+		}
+	}
+	
+	private static class PendingAction {
+		
+		private final BooleanSupplier handOn;
+		
+		private final Runnable action;
+		
+		PendingAction(BooleanSupplier handOn, Runnable action) {
+			this.handOn = handOn;
+			this.action = action;
+		}
+	}
+}
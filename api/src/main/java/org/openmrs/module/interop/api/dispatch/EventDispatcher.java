@@ -0,0 +1,453 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.event.Event;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.utils.GlobalPropertyUtils;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded, striped worker pool shared by all observers. Each worker owns a lane (its own bounded
+ * queue) and events are assigned to lanes by an ordering key, usually the patient UUID, so events
+ * for the same patient are processed in the order they were received while different patients are
+ * processed in parallel. Workers are long-lived daemon threads started with the module
+ * {@link DaemonToken}, so every task runs with the daemon user context without spawning a thread
+ * per event.
+ * <p>
+ * Within a lane events are queued by {@link EventPriority}, see {@link PriorityLane}, so e.g. patient
+ * registrations overtake a backlog of encounters of other patients while lower priorities still get
+ * their share. Events of one patient keep their order whatever their priority.
+ * <p>
+ * Observer types can be given a bulkhead of their own, i.e. their own lanes and workers, so a flood
+ * of or slow work for one type doesn't hold up the others. Types without a bulkhead share one pool.
+ * Events of different bulkheads are processed independently, so ordering per patient only holds
+ * within a bulkhead.
+ */
+@Slf4j
+@Component("interop.eventDispatcher")
+public class EventDispatcher {
+	
+	private static final String WORKER_NAME_PREFIX = "interop-dispatch-";
+	
+	private static final long POLL_INTERVAL_MS = 500;
+	
+	private static final int DEFAULT_QUEUE_SIZE = 1000;
+	
+	private static final String DEFAULT_PRIORITIES = "Patient=HIGH,PatientIdentifier=HIGH,Person=HIGH,PersonName=HIGH";
+	
+	private static final int[] DEFAULT_PRIORITY_WEIGHTS = { 16, 4, 1 };
+	
+	private final AtomicLong rejectedEvents = new AtomicLong();
+	
+	private final List<Runnable> leftovers = Collections.synchronizedList(new ArrayList<>());
+	
+	private Bulkhead sharedBulkhead;
+	
+	private Map<String, Bulkhead> bulkheads = Collections.emptyMap();
+	
+	private EventPriorityRules priorityRules = new EventPriorityRules(EventPriority.NORMAL);
+	
+	private DaemonToken daemonToken;
+	
+	@Getter
+	private RejectionPolicy rejectionPolicy = RejectionPolicy.BLOCK;
+	
+	@Getter
+	private volatile boolean running;
+	
+	private volatile boolean draining;
+	
+	private volatile long drainDeadline = Long.MAX_VALUE;
+	
+	public void start(DaemonToken daemonToken) {
+		int threads = GlobalPropertyUtils.getInteger(InteropConstant.GP_DISPATCH_THREADS,
+		    Runtime.getRuntime().availableProcessors());
+		int queueSize = GlobalPropertyUtils.getInteger(InteropConstant.GP_DISPATCH_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+		RejectionPolicy policy = GlobalPropertyUtils.getEnum(InteropConstant.GP_DISPATCH_REJECTION_POLICY,
+		    RejectionPolicy.class, RejectionPolicy.BLOCK);
+		String priorities = Context.getAdministrationService().getGlobalProperty(InteropConstant.GP_DISPATCH_PRIORITIES,
+		    DEFAULT_PRIORITIES);
+		String weights = Context.getAdministrationService().getGlobalProperty(InteropConstant.GP_DISPATCH_PRIORITY_WEIGHTS);
+		String bulkheadSpecs = Context.getAdministrationService().getGlobalProperty(InteropConstant.GP_DISPATCH_BULKHEADS);
+		start(daemonToken, threads, queueSize, policy, EventPriorityRules.parse(priorities, EventPriority.NORMAL),
+		    parseWeights(weights), bulkheadSpecs);
+	}
+	
+	synchronized void start(DaemonToken daemonToken, int threads, int queueSize, RejectionPolicy rejectionPolicy,
+	        EventPriorityRules priorityRules, int[] weights, String bulkheadSpecs) {
+		if (running) {
+			return;
+		}
+		this.daemonToken = daemonToken;
+		threads = Math.max(1, threads);
+		queueSize = Math.max(1, queueSize);
+		this.rejectionPolicy = rejectionPolicy;
+		this.priorityRules = priorityRules;
+		sharedBulkhead = new Bulkhead(WORKER_NAME_PREFIX, threads, queueSize, weights);
+		bulkheads = parseBulkheads(bulkheadSpecs, weights);
+		leftovers.clear();
+		drainDeadline = Long.MAX_VALUE;
+		running = true;
+		
+		sharedBulkhead.start();
+		bulkheads.values().forEach(Bulkhead::start);
+		log.info("Started interop event dispatcher with {} workers, queue size {} and {} rejection policy", threads,
+		    queueSize, rejectionPolicy);
+		bulkheads.forEach((name, bulkhead) -> log.info("{} events have a bulkhead of {} workers and queue size {}",
+		    name, bulkhead.lanes.size(), bulkhead.queueSize));
+	}
+	
+	/**
+	 * Stops taking new tasks and lets the workers drain the queued ones until the deadline. Tasks
+	 * still queued at the deadline, and tasks submitted after intake stopped, are returned so the
+	 * caller can persist them; a task already running when the deadline passes is left to finish.
+	 *
+	 * @param timeoutMs how long to wait for queued tasks to drain
+	 * @return the tasks that didn't run, highest priority first per lane
+	 */
+	public synchronized List<Runnable> shutdown(long timeoutMs) {
+		if (!running) {
+			return Collections.emptyList();
+		}
+		drainDeadline = System.currentTimeMillis() + Math.max(0, timeoutMs);
+		draining = true;
+		running = false;
+		try {
+			List<Bulkhead> all = new ArrayList<>(bulkheads.values());
+			all.add(sharedBulkhead);
+			for (Bulkhead bulkhead : all) {
+				if (!bulkhead.join()) {
+					break;
+				}
+			}
+			
+			List<Runnable> unfinished = new ArrayList<>();
+			for (Bulkhead bulkhead : all) {
+				bulkhead.drainTo(unfinished);
+			}
+			synchronized (leftovers) {
+				unfinished.addAll(leftovers);
+				leftovers.clear();
+			}
+			log.info("Stopped interop event dispatcher, {} events left unprocessed", unfinished.size());
+			return unfinished;
+		}
+		finally {
+			draining = false;
+		}
+	}
+	
+	/**
+	 * Queues the task on the lane of the given ordering key. Tasks with the same key run one at a time
+	 * in submission order. If the dispatcher hasn't been started the task runs in its own daemon thread
+	 * as before.
+	 *
+	 * @param orderingKey key that decides the lane e.g. the patient UUID, tasks without a key are
+	 *            spread over all lanes
+	 * @param task the event processing task
+	 */
+	public void execute(String orderingKey, Runnable task) {
+		execute(null, orderingKey, EventPriority.NORMAL, task);
+	}
+	
+	/**
+	 * Queues the task on the lane of the given ordering key with the given priority. Tasks with the
+	 * same key run one at a time in submission order whatever their priority, a higher priority task
+	 * only overtakes queued tasks of other keys.
+	 *
+	 * @param bulkhead the bulkhead of the task e.g. the simple name of the observed class, tasks of
+	 *            types without a bulkhead of their own go to the shared pool
+	 * @param orderingKey key that decides the lane e.g. the patient UUID
+	 * @param priority the priority of the task
+	 * @param task the event processing task
+	 */
+	public void execute(String bulkhead, String orderingKey, EventPriority priority, Runnable task) {
+		if (offer(bulkhead, orderingKey, priority, task)) {
+			return;
+		}
+		PriorityLane queue = bulkheadOf(bulkhead).laneFor(orderingKey);
+		
+		// only events that are dropped or run on the caller count as rejected, a wait that ends with room
+		// in the queue doesn't
+		switch (rejectionPolicy) {
+			case BLOCK:
+				try {
+					while (!queue.offer(task, orderingKey, priority, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+						if (!running) {
+							// intake stopped while waiting, keep the task with the ones left at shutdown
+							leftovers.add(task);
+							break;
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					rejectedEvents.incrementAndGet();
+					log.warn("Interrupted while waiting for room in the interop event queue, event dropped");
+				}
+				break;
+			case DISCARD:
+				rejectedEvents.incrementAndGet();
+				log.warn("Interop event queue is full, event dropped");
+				break;
+			case CALLER_RUNS:
+			default:
+				rejectedEvents.incrementAndGet();
+				runInDaemonThreadAndWait(task);
+				break;
+		}
+	}
+	
+	/**
+	 * Queues the task like {@link #execute(String, String, EventPriority, Runnable)} if its lane has
+	 * room, without waiting and without applying the rejection policy
+	 *
+	 * @param bulkhead the bulkhead of the task
+	 * @param orderingKey key that decides the lane e.g. the patient UUID
+	 * @param priority the priority of the task
+	 * @param task the event processing task
+	 * @return false if the lane is full and the task wasn't queued
+	 */
+	public boolean offer(String bulkhead, String orderingKey, EventPriority priority, Runnable task) {
+		if (!running) {
+			if (draining) {
+				leftovers.add(task);
+			} else {
+				runInDaemonThread(task);
+			}
+			return true;
+		}
+		return bulkheadOf(bulkhead).laneFor(orderingKey).offer(task, orderingKey, priority);
+	}
+	
+	/**
+	 * @param entityClass the name of the event class
+	 * @param action the event action
+	 * @return the configured priority of the event
+	 */
+	public EventPriority priorityOf(String entityClass, Event.Action action) {
+		return priorityRules.resolve(entityClass, action);
+	}
+	
+	public int getQueueDepth() {
+		if (!running) {
+			return 0;
+		}
+		int depth = sharedBulkhead.size();
+		for (Bulkhead bulkhead : bulkheads.values()) {
+			depth += bulkhead.size();
+		}
+		return depth;
+	}
+	
+	/**
+	 * @param bulkhead the bulkhead name
+	 * @return the number of tasks queued in the bulkhead, or in the shared pool if it has none
+	 */
+	public int getQueueDepth(String bulkhead) {
+		return running ? bulkheadOf(bulkhead).size() : 0;
+	}
+	
+	public long getRejectedEvents() {
+		return rejectedEvents.get();
+	}
+	
+	private Bulkhead bulkheadOf(String name) {
+		Bulkhead bulkhead = name != null ? bulkheads.get(name) : null;
+		return bulkhead != null ? bulkhead : sharedBulkhead;
+	}
+	
+	/**
+	 * Parses bulkheads written as a comma separated list of {@code Name:threads[:queueSize]} e.g.
+	 * {@code Encounter:2:500,Obs:1}
+	 */
+	private Map<String, Bulkhead> parseBulkheads(String value, int[] weights) {
+		if (StringUtils.isBlank(value)) {
+			return Collections.emptyMap();
+		}
+		Map<String, Bulkhead> result = new HashMap<>();
+		for (String spec : value.split(",")) {
+			if (StringUtils.isBlank(spec)) {
+				continue;
+			}
+			String[] parts = spec.trim().split(":");
+			try {
+				if (parts.length < 2 || parts.length > 3 || StringUtils.isBlank(parts[0])) {
+					throw new NumberFormatException();
+				}
+				String name = parts[0].trim();
+				int threads = Math.max(1, Integer.parseInt(parts[1].trim()));
+				int queueSize = parts.length == 3 ? Math.max(1, Integer.parseInt(parts[2].trim())) : DEFAULT_QUEUE_SIZE;
+				result.put(name, new Bulkhead(WORKER_NAME_PREFIX + name + "-", threads, queueSize, weights));
+			}
+			catch (NumberFormatException e) {
+				log.warn("Ignoring invalid bulkhead '{}', expected Name:threads[:queueSize]", spec);
+			}
+		}
+		return result;
+	}
+	
+	private int[] parseWeights(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return DEFAULT_PRIORITY_WEIGHTS;
+		}
+		String[] parts = value.trim().split(":");
+		if (parts.length != DEFAULT_PRIORITY_WEIGHTS.length) {
+			log.warn("Invalid priority weights '{}', using the defaults", value);
+			return DEFAULT_PRIORITY_WEIGHTS;
+		}
+		int[] weights = new int[parts.length];
+		try {
+			for (int i = 0; i < parts.length; i++) {
+				weights[i] = Math.max(1, Integer.parseInt(parts[i].trim()));
+			}
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid priority weights '{}', using the defaults", value);
+			return DEFAULT_PRIORITY_WEIGHTS;
+		}
+		return weights;
+	}
+	
+	private void work(PriorityLane queue, String name) {
+		Thread.currentThread().setName(name);
+		while (running || (queue.size() > 0 && System.currentTimeMillis() < drainDeadline)) {
+			Runnable task;
+			try {
+				task = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (task != null) {
+				runTask(task);
+			}
+		}
+	}
+	
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+			clearSession();
+		}
+		catch (Exception e) {
+			log.error("Unable to process interop event", e);
+			// drop what the failed task left behind, reopening the session would lose the daemon user
+			clearSession();
+		}
+	}
+	
+	// the module daemon token only exists in a running OpenMRS, tests run these on plain threads
+	Thread runInDaemonThread(Runnable task) {
+		return Daemon.runInDaemonThread(task, daemonToken);
+	}
+	
+	void runInDaemonThreadAndWait(Runnable task) {
+		Daemon.runInDaemonThreadAndWait(task, daemonToken);
+	}
+	
+	void clearSession() {
+		Context.clearSession();
+	}
+	
+	/**
+	 * A set of lanes with one worker each
+	 */
+	private class Bulkhead {
+		
+		private final String workerNamePrefix;
+		
+		private final int queueSize;
+		
+		private final List<PriorityLane> lanes;
+		
+		private final List<Thread> workers = new ArrayList<>();
+		
+		private final AtomicInteger unkeyedEvents = new AtomicInteger();
+		
+		Bulkhead(String workerNamePrefix, int threads, int queueSize, int[] weights) {
+			this.workerNamePrefix = workerNamePrefix;
+			this.queueSize = queueSize;
+			int laneSize = Math.max(1, (queueSize + threads - 1) / threads);
+			this.lanes = new ArrayList<>(threads);
+			for (int i = 0; i < threads; i++) {
+				lanes.add(new PriorityLane(laneSize, weights));
+			}
+		}
+		
+		void start() {
+			for (int i = 0; i < lanes.size(); i++) {
+				PriorityLane lane = lanes.get(i);
+				String name = workerNamePrefix + i;
+				workers.add(runInDaemonThread(() -> work(lane, name)));
+			}
+		}
+		
+		PriorityLane laneFor(String orderingKey) {
+			if (orderingKey == null) {
+				return lanes.get((unkeyedEvents.getAndIncrement() & Integer.MAX_VALUE) % lanes.size());
+			}
+			int hash = orderingKey.hashCode();
+			hash ^= (hash >>> 16);
+			return lanes.get((hash & Integer.MAX_VALUE) % lanes.size());
+		}
+		
+		/**
+		 * Waits for the workers to finish draining, at most until the drain deadline
+		 *
+		 * @return false if interrupted while waiting
+		 */
+		boolean join() {
+			for (Thread worker : workers) {
+				long remaining = drainDeadline - System.currentTimeMillis();
+				try {
+					worker.join(Math.max(1, remaining) + POLL_INTERVAL_MS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			workers.clear();
+			return true;
+		}
+		
+		void drainTo(List<Runnable> tasks) {
+			for (PriorityLane lane : lanes) {
+				lane.drainTo(tasks);
+			}
+		}
+		
+		int size() {
+			int depth = 0;
+			for (PriorityLane lane : lanes) {
+				depth += lane.size();
+			}
+			return depth;
+		}
+	}
+}
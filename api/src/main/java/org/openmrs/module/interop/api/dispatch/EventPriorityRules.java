@@ -0,0 +1,86 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.event.Event;
+
+/**
+ * Maps event classes and actions to a {@link EventPriority}. Rules are written as a comma separated
+ * list of {@code Class[:ACTION]=LEVEL} e.g. {@code Patient=HIGH,Obs:VOIDED=LOW}, where the class is
+ * the simple name of the OpenMRS class. A rule with an action wins over the rule for the whole class.
+ */
+@Slf4j
+public class EventPriorityRules {
+	
+	private final Map<String, EventPriority> classRules = new HashMap<>();
+	
+	private final Map<String, Map<Event.Action, EventPriority>> actionRules = new HashMap<>();
+	
+	private final EventPriority defaultPriority;
+	
+	public EventPriorityRules(EventPriority defaultPriority) {
+		this.defaultPriority = defaultPriority;
+	}
+	
+	public static EventPriorityRules parse(String rules, EventPriority defaultPriority) {
+		EventPriorityRules result = new EventPriorityRules(defaultPriority);
+		if (StringUtils.isBlank(rules)) {
+			return result;
+		}
+		for (String rule : rules.split(",")) {
+			if (StringUtils.isBlank(rule)) {
+				continue;
+			}
+			String[] parts = rule.split("=");
+			if (parts.length != 2) {
+				log.warn("Ignoring invalid event priority rule '{}'", rule);
+				continue;
+			}
+			try {
+				EventPriority priority = EventPriority.valueOf(parts[1].trim().toUpperCase());
+				String[] target = parts[0].trim().split(":");
+				if (target.length == 1) {
+					result.classRules.put(target[0].trim(), priority);
+				} else {
+					Event.Action action = Event.Action.valueOf(target[1].trim().toUpperCase());
+					result.actionRules.computeIfAbsent(target[0].trim(), key -> new EnumMap<>(Event.Action.class))
+					        .put(action, priority);
+				}
+			}
+			catch (IllegalArgumentException e) {
+				log.warn("Ignoring invalid event priority rule '{}'", rule);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @param entityClass the fully qualified or simple name of the event class
+	 * @param action the event action
+	 * @return the priority of the event
+	 */
+	public EventPriority resolve(String entityClass, Event.Action action) {
+		String simpleName = entityClass.substring(entityClass.lastIndexOf('.') + 1);
+		Map<Event.Action, EventPriority> actions = actionRules.get(simpleName);
+		if (actions != null && action != null) {
+			EventPriority priority = actions.get(action);
+			if (priority != null) {
+				return priority;
+			}
+		}
+		return classRules.getOrDefault(simpleName, defaultPriority);
+	}
+}
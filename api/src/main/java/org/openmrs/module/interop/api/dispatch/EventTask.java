@@ -0,0 +1,35 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+import lombok.Getter;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
+
+/**
+ * A queued event processing task together with the event it was created for, so the event can be
+ * persisted and replayed if the task doesn't get to run before shutdown
+ */
+@Getter
+public class EventTask implements Runnable {
+	
+	private final EventEnvelope envelope;
+	
+	private final Runnable task;
+	
+	public EventTask(EventEnvelope envelope, Runnable task) {
+		this.envelope = envelope;
+		this.task = task;
+	}
+	
+	@Override
+	public void run() {
+		task.run();
+	}
+}
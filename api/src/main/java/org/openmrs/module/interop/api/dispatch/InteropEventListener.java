@@ -0,0 +1,138 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+import javax.jms.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.event.Event;
+import org.openmrs.event.EventListener;
+import org.openmrs.module.interop.api.Subscribable;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
+import org.springframework.stereotype.Component;
+
+/**
+ * The single listener subscribed to the event module on behalf of all observers. Instead of every
+ * observer holding its own consumer per class and action, this listener subscribes once per
+ * distinct class and action and routes each message through a dispatch table built when events are
+ * enabled. It is also the one place where the ingestion rate is measured.
+ */
+@Slf4j
+@Component("interop.eventListener")
+public class InteropEventListener implements EventListener {
+	
+	private final AtomicLong receivedEvents = new AtomicLong();
+	
+	private final AtomicLong unroutedEvents = new AtomicLong();
+	
+	private volatile Map<String, Map<Event.Action, List<Subscribable<?>>>> dispatchTable = Collections.emptyMap();
+	
+	private volatile long startedAt;
+	
+	/**
+	 * Builds the dispatch table for the given observers
+	 *
+	 * @param observers the observers to route messages to
+	 * @return the distinct classes and actions to subscribe this listener to
+	 */
+	public Map<Class<?>, Set<Event.Action>> register(List<? extends Subscribable<?>> observers) {
+		Map<String, Map<Event.Action, List<Subscribable<?>>>> table = new HashMap<>();
+		Map<Class<?>, Set<Event.Action>> subscriptions = new LinkedHashMap<>();
+		for (Subscribable<?> observer : observers) {
+			Map<Event.Action, List<Subscribable<?>>> actions = table.computeIfAbsent(observer.clazz().getName(),
+			    className -> new EnumMap<>(Event.Action.class));
+			for (Event.Action action : observer.actions()) {
+				actions.computeIfAbsent(action, a -> new ArrayList<>()).add(observer);
+				subscriptions.computeIfAbsent(observer.clazz(), clazz -> new LinkedHashSet<>()).add(action);
+			}
+		}
+		dispatchTable = table;
+		receivedEvents.set(0);
+		unroutedEvents.set(0);
+		startedAt = System.currentTimeMillis();
+		return subscriptions;
+	}
+	
+	/**
+	 * Clears the dispatch table, messages still in flight are dropped
+	 */
+	public void clear() {
+		dispatchTable = Collections.emptyMap();
+	}
+	
+	@Override
+	public void onMessage(Message message) {
+		receivedEvents.incrementAndGet();
+		EventEnvelope envelope = EventEnvelope.from(message).orElse(null);
+		if (envelope == null) {
+			unroutedEvents.incrementAndGet();
+			return;
+		}
+		deliver(envelope);
+	}
+	
+	/**
+	 * Hands an event to the observers registered for its class and action, e.g. an event persisted at
+	 * shutdown and replayed on start
+	 *
+	 * @param envelope the event envelope
+	 */
+	public void deliver(EventEnvelope envelope) {
+		List<Subscribable<?>> observers = route(envelope);
+		if (observers.isEmpty()) {
+			unroutedEvents.incrementAndGet();
+			return;
+		}
+		for (Subscribable<?> observer : observers) {
+			try {
+				observer.onEvent(envelope);
+			}
+			catch (Exception e) {
+				log.error("{} failed to handle event", observer.getClass().getSimpleName(), e);
+			}
+		}
+	}
+	
+	public long getReceivedEvents() {
+		return receivedEvents.get();
+	}
+	
+	public long getUnroutedEvents() {
+		return unroutedEvents.get();
+	}
+	
+	/**
+	 * @return the average number of events received per second since events were enabled
+	 */
+	public double getIngestionRate() {
+		long elapsed = System.currentTimeMillis() - startedAt;
+		return elapsed > 0 ? receivedEvents.get() * 1000.0 / elapsed : 0;
+	}
+	
+	private List<Subscribable<?>> route(EventEnvelope envelope) {
+		Map<Event.Action, List<Subscribable<?>>> actions = dispatchTable.get(envelope.getEntityClass());
+		if (actions == null) {
+			return Collections.emptyList();
+		}
+		List<Subscribable<?>> observers = actions.get(envelope.getAction());
+		return observers != null ? observers : Collections.emptyList();
+	}
+}
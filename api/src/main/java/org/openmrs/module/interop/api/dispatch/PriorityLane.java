@@ -0,0 +1,230 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue with one sub-queue per {@link EventPriority}. Sub-queues are served by weighted
+ * round robin: while every level has work, each round takes up to {@code weights[level]} tasks from
+ * each level, highest first. High priority work therefore goes first, while lower levels still get a
+ * guaranteed share and can't be starved.
+ * <p>
+ * Tasks with the same ordering key are served in the order they were queued whatever their
+ * priority: a task is queued at the highest priority of the queued tasks of its key, and raises the
+ * tasks already queued for its key to its own priority if that is higher. A high priority event thus
+ * overtakes the queued events of other patients, but not those of its own patient.
+ */
+class PriorityLane {
+	
+	private static final EventPriority[] LEVELS = EventPriority.values();
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private final Condition notEmpty = lock.newCondition();
+	
+	private final Condition notFull = lock.newCondition();
+	
+	private final ArrayDeque<Queued>[] queues;
+	
+	private final Map<String, QueuedKey> queuedKeys = new HashMap<>();
+	
+	private final int[] weights;
+	
+	private final int[] credits;
+	
+	private final int capacity;
+	
+	private int count;
+	
+	@SuppressWarnings("unchecked")
+	PriorityLane(int capacity, int[] weights) {
+		this.capacity = capacity;
+		this.weights = weights.clone();
+		this.credits = weights.clone();
+		this.queues = new ArrayDeque[LEVELS.length];
+		for (int i = 0; i < LEVELS.length; i++) {
+			queues[i] = new ArrayDeque<>();
+		}
+	}
+	
+	boolean offer(Runnable task, String orderingKey, EventPriority priority) {
+		lock.lock();
+		try {
+			if (count >= capacity) {
+				return false;
+			}
+			enqueue(task, orderingKey, priority);
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	boolean offer(Runnable task, String orderingKey, EventPriority priority, long timeout, TimeUnit unit)
+	        throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count >= capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			enqueue(task, orderingKey, priority);
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			Runnable task = dequeue();
+			notFull.signal();
+			return task;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes all queued tasks, highest priority first
+	 *
+	 * @param tasks the collection to add the tasks to
+	 * @return the number of tasks removed
+	 */
+	int drainTo(Collection<Runnable> tasks) {
+		lock.lock();
+		try {
+			int drained = count;
+			for (ArrayDeque<Queued> queue : queues) {
+				for (Queued queued : queue) {
+					tasks.add(queued.task);
+				}
+				queue.clear();
+			}
+			queuedKeys.clear();
+			count = 0;
+			notFull.signalAll();
+			return drained;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	int size() {
+		lock.lock();
+		try {
+			return count;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private void enqueue(Runnable task, String orderingKey, EventPriority priority) {
+		int level = priority.ordinal();
+		if (orderingKey != null) {
+			QueuedKey queuedKey = queuedKeys.get(orderingKey);
+			if (queuedKey == null) {
+				queuedKeys.put(orderingKey, new QueuedKey(level));
+			} else {
+				if (level < queuedKey.level) {
+					raise(orderingKey, queuedKey.level, level);
+					queuedKey.level = level;
+				}
+				level = queuedKey.level;
+				queuedKey.count++;
+			}
+		}
+		queues[level].addLast(new Queued(task, orderingKey));
+		count++;
+		notEmpty.signal();
+	}
+	
+	/**
+	 * Moves the queued tasks of a key to a higher level, behind the tasks queued there
+	 */
+	private void raise(String orderingKey, int from, int to) {
+		for (Iterator<Queued> iterator = queues[from].iterator(); iterator.hasNext();) {
+			Queued queued = iterator.next();
+			if (orderingKey.equals(queued.orderingKey)) {
+				iterator.remove();
+				queues[to].addLast(queued);
+			}
+		}
+	}
+	
+	private Runnable dequeue() {
+		for (int attempt = 0; attempt < 2; attempt++) {
+			for (int i = 0; i < queues.length; i++) {
+				if (credits[i] > 0 && !queues[i].isEmpty()) {
+					credits[i]--;
+					count--;
+					Queued queued = queues[i].pollFirst();
+					if (queued.orderingKey != null && --queuedKeys.get(queued.orderingKey).count == 0) {
+						queuedKeys.remove(queued.orderingKey);
+					}
+					return queued.task;
+				}
+			}
+			// every level with work used up its share of this round, start the next one
+			System.arraycopy(weights, 0, credits, 0, weights.length);
+		}
+		throw new IllegalStateException("Priority lane is empty");
+	}
+	
+	private static class Queued {
+		
+		private final Runnable task;
+		
+		private final String orderingKey;
+		
+		Queued(Runnable task, String orderingKey) {
+			this.task = task;
+			this.orderingKey = orderingKey;
+		}
+	}
+	
+	/**
+	 * The level and number of the queued tasks of an ordering key
+	 */
+	private static class QueuedKey {
+		
+		private int level;
+		
+		private int count = 1;
+		
+		QueuedKey(int level) {
+			this.level = level;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+/**
+ * What the {@link EventDispatcher} does with an event when the work queue is full
+ */
+public enum RejectionPolicy {
+	
+	/**
+	 * Process the event on the calling (JMS listener) thread, slowing down intake until the workers
+	 * catch up. The event may overtake events already queued for the same patient.
+	 */
+	CALLER_RUNS,
+	
+	/**
+	 * Block the calling thread until there is room in the queue, keeps per patient ordering
+	 */
+	BLOCK,
+	
+	/**
+	 * Drop the event and log a warning
+	 */
+	DISCARD
+}
@@ -9,7 +9,103 @@
  */
 package org.openmrs.module.interop.api.impl;
 
+import java.util.Date;
+import java.util.List;
+
+import lombok.Setter;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.interop.api.InteropService;
+import org.openmrs.module.interop.api.db.InteropDao;
+import org.openmrs.module.interop.api.model.ContentHash;
+import org.openmrs.module.interop.api.model.DeadLetterEntry;
+import org.openmrs.module.interop.api.model.OutboxEntry;
+import org.openmrs.module.interop.api.model.PendingEvent;
 
-public class InteropServiceImpl extends BaseOpenmrsService implements InteropService {}
+public class InteropServiceImpl extends BaseOpenmrsService implements InteropService {
+	
+	@Setter
+	private InteropDao dao;
+	
+	@Override
+	public String getPatientUuid(Class<?> entityClass, String uuid) {
+		return dao.getPatientUuid(entityClass, uuid);
+	}
+	
+	@Override
+	public OutboxEntry saveOutboxEntry(OutboxEntry entry) {
+		return dao.saveOutboxEntry(entry);
+	}
+	
+	@Override
+	public List<OutboxEntry> getPendingOutboxEntries(String destination, Date attemptedBefore, int maxResults) {
+		return dao.getPendingOutboxEntries(destination, attemptedBefore, maxResults);
+	}
+	
+	@Override
+	public long getPendingOutboxEntryCount(String destination) {
+		return dao.getPendingOutboxEntryCount(destination);
+	}
+	
+	@Override
+	public long getNewerOutboxEntryCount(String destination, String contentKey, Date createdAfter) {
+		return dao.getNewerOutboxEntryCount(destination, contentKey, createdAfter);
+	}
+	
+	@Override
+	public void purgeOutboxEntry(OutboxEntry entry) {
+		dao.deleteOutboxEntry(entry);
+	}
+	
+	@Override
+	public ContentHash getContentHash(String destination, String resourceKey) {
+		return dao.getContentHash(destination, resourceKey);
+	}
+	
+	@Override
+	public ContentHash saveContentHash(ContentHash contentHash) {
+		return dao.saveContentHash(contentHash);
+	}
+	
+	@Override
+	public DeadLetterEntry saveDeadLetterEntry(DeadLetterEntry entry) {
+		return dao.saveDeadLetterEntry(entry);
+	}
+	
+	@Override
+	public DeadLetterEntry moveToDeadLetter(OutboxEntry entry, DeadLetterEntry deadLetter) {
+		dao.deleteOutboxEntry(entry);
+		return dao.saveDeadLetterEntry(deadLetter);
+	}
+	
+	@Override
+	public List<DeadLetterEntry> getDueDeadLetterEntries(Date dueBy, int maxResults) {
+		return dao.getDueDeadLetterEntries(dueBy, maxResults);
+	}
+	
+	@Override
+	public long getNewerDeadLetterEntryCount(String destination, String contentKey, Date createdAfter) {
+		return dao.getNewerDeadLetterEntryCount(destination, contentKey, createdAfter);
+	}
+	
+	@Override
+	public void purgeDeadLetterEntry(DeadLetterEntry entry) {
+		dao.deleteDeadLetterEntry(entry);
+	}
+	
+	@Override
+	public void savePendingEvents(List<PendingEvent> events) {
+		for (PendingEvent event : events) {
+			dao.savePendingEvent(event);
+		}
+	}
+	
+	@Override
+	public List<PendingEvent> getAllPendingEvents() {
+		return dao.getAllPendingEvents();
+	}
+	
+	@Override
+	public void purgePendingEvent(PendingEvent event) {
+		dao.deletePendingEvent(event);
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.metadata;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+
+import java.util.Optional;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.openmrs.event.Event;
+
+/**
+ * Immutable view of an event emitted by the event module. The destination is parsed once, by
+ * scanning it in place, so apart from the envelope itself only the class name is allocated per
+ * message.
+ */
+@Slf4j
+@Getter
+public final class EventEnvelope {
+	
+	private static final String TOPIC_PREFIX = "topic://";
+	
+	private static final Event.Action[] ACTIONS = Event.Action.values();
+	
+	private final String entityClass;
+	
+	private final Event.Action action;
+	
+	private final String uuid;
+	
+	private final long receivedAt;
+	
+	public EventEnvelope(String entityClass, Event.Action action, String uuid, long receivedAt) {
+		this.entityClass = entityClass;
+		this.action = action;
+		this.uuid = uuid;
+		this.receivedAt = receivedAt;
+	}
+	
+	/**
+	 * Reads the envelope of an event message
+	 *
+	 * @param message the emitted event message
+	 * @return the envelope, empty if the message isn't a well formed event
+	 */
+	public static Optional<EventEnvelope> from(Message message) {
+		if (!(message instanceof MapMessage)) {
+			return Optional.empty();
+		}
+		MapMessage mapMessage = (MapMessage) message;
+		try {
+			return Optional.ofNullable(
+			    parse(mapMessage.getString("uuid"), mapMessage.getString("destination"), System.currentTimeMillis()));
+		}
+		catch (JMSException e) {
+			log.error("Exception caught while trying to get the uuid or destination of the event", e);
+			return Optional.empty();
+		}
+	}
+	
+	/**
+	 * Parses an event destination e.g. topic://UPDATED:org.openmrs.Patient
+	 *
+	 * @param uuid the UUID of the OpenMRS object
+	 * @param destination the destination the event was published to
+	 * @param receivedAt when the event was received
+	 * @return the envelope, or null if the destination isn't a known class and action
+	 */
+	public static EventEnvelope parse(String uuid, String destination, long receivedAt) {
+		if (uuid == null || destination == null) {
+			return null;
+		}
+		int separator = separatorOf(destination);
+		if (separator < 0 || separator == destination.length() - 1) {
+			return null;
+		}
+		Event.Action action = actionOf(destination, separator);
+		if (action == null) {
+			return null;
+		}
+		return new EventEnvelope(destination.substring(separator + 1), action, uuid, receivedAt);
+	}
+	
+	/**
+	 * Determines the database operation/activity performed
+	 *
+	 * @param destination the destination the event was published to
+	 * @return {@link Event.Action} performed
+	 */
+	public static Optional<Event.Action> parseAction(String destination) {
+		if (destination == null) {
+			return Optional.empty();
+		}
+		int separator = separatorOf(destination);
+		return separator < 0 ? Optional.empty() : Optional.ofNullable(actionOf(destination, separator));
+	}
+	
+	private static int separatorOf(String destination) {
+		if (!destination.startsWith(TOPIC_PREFIX)) {
+			return -1;
+		}
+		return destination.indexOf(':', TOPIC_PREFIX.length());
+	}
+	
+	private static Event.Action actionOf(String destination, int separator) {
+		int length = separator - TOPIC_PREFIX.length();
+		for (Event.Action action : ACTIONS) {
+			String name = action.name();
+			if (name.length() == length && destination.regionMatches(TOPIC_PREFIX.length(), name, 0, length)) {
+				return action;
+			}
+		}
+		return null;
+	}
+	
+	@Override
+	public String toString() {
+		return action + ":" + entityClass + "[" + uuid + "]";
+	}
+}
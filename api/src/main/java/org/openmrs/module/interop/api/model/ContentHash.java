@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import java.util.Date;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.openmrs.BaseOpenmrsObject;
+
+/**
+ * The hash of the content last delivered to a publisher for a resource, see
+ * {@link org.openmrs.module.interop.api.delivery.ContentDeduplicator}
+ */
+@Getter
+@Setter
+@Entity
+@Table(name = "interop_content_hash")
+public class ContentHash extends BaseOpenmrsObject {
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "content_hash_id")
+	private Integer id;
+	
+	/**
+	 * The publisher the content was delivered to, see
+	 * {@link org.openmrs.module.interop.api.delivery.PublisherRegistry#nameOf}
+	 */
+	@Column(name = "destination", nullable = false)
+	private String destination;
+	
+	@Column(name = "resource_key", nullable = false)
+	private String resourceKey;
+	
+	/**
+	 * Null when the content was delivered while skipping unchanged content was disabled
+	 */
+	@Column(name = "content_hash", length = 64)
+	private String contentHash;
+	
+	/**
+	 * When the delivered content was recorded for delivery
+	 */
+	@Column(name = "date_changed", nullable = false)
+	private Date dateChanged = new Date();
+}
@@ -0,0 +1,95 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+import java.util.Date;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.openmrs.BaseOpenmrsObject;
+
+/**
+ * An encoded FHIR resource that couldn't be delivered to one publisher, kept for retrying
+ */
+@Getter
+@Setter
+@Entity
+@Table(name = "interop_dead_letter")
+public class DeadLetterEntry extends BaseOpenmrsObject {
+	
+	public enum Status {
+		PENDING,
+		ABANDONED
+	}
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "dead_letter_entry_id")
+	private Integer id;
+	
+	@Column(name = "resource_type", nullable = false, length = 50)
+	private String resourceType;
+	
+	@Column(name = "resource_id")
+	private String resourceId;
+	
+	@Lob
+	@Column(name = "payload", nullable = false)
+	private String payload;
+	
+	@Column(name = "destination", nullable = false)
+	private String destination;
+	
+	/**
+	 * Identifies the resource across updates, see
+	 * {@link org.openmrs.module.interop.api.delivery.ContentDeduplicator#keyOf}
+	 */
+	@Column(name = "content_key")
+	private String contentKey;
+	
+	/**
+	 * The hash of the payload, carried over from the outbox entry and recorded once it is delivered
+	 */
+	@Column(name = "content_hash", length = 64)
+	private String contentHash;
+	
+	@Column(name = "error", length = 1024)
+	private String error;
+	
+	@Enumerated(EnumType.STRING)
+	@Column(name = "status", nullable = false, length = 20)
+	private Status status = Status.PENDING;
+	
+	@Column(name = "attempts", nullable = false)
+	private Integer attempts = 0;
+	
+	/**
+	 * When the content was recorded for delivery, carried over from the outbox entry so a newer
+	 * version of the resource can be told apart
+	 */
+	@Column(name = "date_created", nullable = false)
+	private Date dateCreated = new Date();
+	
+	@Column(name = "date_last_attempted")
+	private Date dateLastAttempted;
+	
+	@Column(name = "next_attempt", nullable = false)
+	private Date nextAttempt;
+}
@@ -0,0 +1,99 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+import java.util.Date;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.openmrs.BaseOpenmrsObject;
+
+/**
+ * An encoded FHIR resource waiting to be delivered to one publisher, the destination
+ */
+@Getter
+@Setter
+@Entity
+@Table(name = "interop_outbox")
+public class OutboxEntry extends BaseOpenmrsObject {
+	
+	public enum Status {
+		PENDING
+	}
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "outbox_entry_id")
+	private Integer id;
+	
+	@Column(name = "resource_type", nullable = false, length = 50)
+	private String resourceType;
+	
+	@Column(name = "resource_id")
+	private String resourceId;
+	
+	@Lob
+	@Column(name = "payload", nullable = false)
+	private String payload;
+	
+	/**
+	 * The publisher the entry is for, see {@link org.openmrs.module.interop.api.delivery.PublisherRegistry#nameOf}
+	 */
+	@Column(name = "destination", nullable = false)
+	private String destination;
+	
+	/**
+	 * Identifies the resource for {@link org.openmrs.module.interop.api.delivery.ContentDeduplicator},
+	 * null if the content isn't tracked
+	 */
+	@Column(name = "content_key")
+	private String contentKey;
+	
+	/**
+	 * The hash of the payload, recorded once it is delivered, see
+	 * {@link org.openmrs.module.interop.api.delivery.ContentDeduplicator#hash}, null if skipping
+	 * unchanged content was disabled
+	 */
+	@Column(name = "content_hash", length = 64)
+	private String contentHash;
+	
+	/**
+	 * The patient the resource is about, entries with the same key are delivered in the order they
+	 * were recorded, see {@link org.openmrs.module.interop.api.delivery.DeliveryChannel#orderingKeyOf}
+	 */
+	@Column(name = "ordering_key")
+	private String orderingKey;
+	
+	@Enumerated(EnumType.STRING)
+	@Column(name = "status", nullable = false, length = 20)
+	private Status status = Status.PENDING;
+	
+	@Column(name = "attempts", nullable = false)
+	private Integer attempts = 0;
+	
+	@Column(name = "last_error", length = 1024)
+	private String lastError;
+	
+	@Column(name = "date_created", nullable = false)
+	private Date dateCreated = new Date();
+	
+	@Column(name = "date_last_attempted")
+	private Date dateLastAttempted;
+}
@@ -0,0 +1,54 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import java.util.Date;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.event.Event;
+
+/**
+ * An event that was received but not processed before the module stopped, replayed on the next start
+ */
+@Getter
+@Setter
+@Entity
+@Table(name = "interop_pending_event")
+public class PendingEvent extends BaseOpenmrsObject {
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "pending_event_id")
+	private Integer id;
+	
+	@Column(name = "entity_class", nullable = false)
+	private String entityClass;
+	
+	@Enumerated(EnumType.STRING)
+	@Column(name = "action", nullable = false, length = 20)
+	private Event.Action action;
+	
+	@Column(name = "entity_uuid", nullable = false, length = 38)
+	private String entityUuid;
+	
+	@Column(name = "date_received", nullable = false)
+	private Date dateReceived;
+}
@@ -13,17 +13,15 @@ import lombok.extern.slf4j.Slf4j;
 import org.openmrs.Allergy;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
-import org.openmrs.api.context.Daemon;
 import org.openmrs.event.Event;
 import org.openmrs.module.fhir2.api.FhirAllergyIntoleranceService;
 import org.openmrs.module.interop.api.Subscribable;
-import org.openmrs.module.interop.api.metadata.EventMetadata;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
 import org.openmrs.module.interop.utils.ObserverUtils;
 import org.openmrs.module.interop.utils.ReferencesUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import javax.jms.Message;
 import javax.validation.constraints.NotNull;
 import java.util.List;
 
@@ -45,14 +43,13 @@ public class AllergyObserver extends BaseObserver implements Subscribable<Allerg
 	}
 	
 	@Override
-	public void onMessage(Message message) {
-		processMessage(message)
-		        .ifPresent(metadata -> Daemon.runInDaemonThread(() -> prepareAllergyMessage(metadata), getDaemonToken()));
+	public void onEvent(EventEnvelope envelope) {
+		dispatch(envelope, () -> prepareAllergyMessage(envelope));
 	}
 	
-	private void prepareAllergyMessage(@NotNull EventMetadata metadata) {
+	private void prepareAllergyMessage(@NotNull EventEnvelope envelope) {
 		org.hl7.fhir.r4.model.AllergyIntolerance allergyIntolerance = allergyIntoleranceService
-		        .get(metadata.getString("uuid"));
+		        .get(envelope.getUuid());
 		if (allergyIntolerance != null && !allergyIntolerance.getReaction().isEmpty()
 		        && !(allergyIntolerance.getReactionFirstRep().getManifestation().isEmpty())) {
 			if (allergyIntolerance.getPatient() != null) {
@@ -67,7 +64,7 @@ public class AllergyObserver extends BaseObserver implements Subscribable<Allerg
 			this.publish(allergyIntolerance);
 		} else {
 			log.error("Couldn't find allergy with UUID {} or resource missing required properties",
-			    metadata.getString("uuid"));
+			    envelope.getUuid());
 		}
 	}
 }
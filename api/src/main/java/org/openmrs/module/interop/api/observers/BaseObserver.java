@@ -9,25 +9,44 @@
  */
 package org.openmrs.module.interop.api.observers;
 
-import javax.jms.JMSException;
-import javax.jms.MapMessage;
 import javax.jms.Message;
 import javax.validation.constraints.NotNull;
 
-import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import ca.uhn.fhir.context.FhirContext;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.openmrs.api.context.Context;
 import org.openmrs.event.Event;
 import org.openmrs.module.DaemonToken;
+import org.openmrs.module.interop.api.DeliveryReceipt;
+import org.openmrs.module.interop.api.EncodedPayload;
+import org.openmrs.module.interop.api.InteropService;
 import org.openmrs.module.interop.api.Publisher;
-import org.openmrs.module.interop.api.metadata.EventMetadata;
-import org.openmrs.module.interop.utils.ClassUtils;
+import org.openmrs.module.interop.api.delivery.ContentDeduplicator;
+import org.openmrs.module.interop.api.delivery.DeliveryChannel;
+import org.openmrs.module.interop.api.delivery.DeliveryCoordinator;
+import org.openmrs.module.interop.api.delivery.OutboxDrainer;
+import org.openmrs.module.interop.api.delivery.PublisherRegistry;
+import org.openmrs.module.interop.api.delivery.RoutingTable;
+import org.openmrs.module.interop.api.dispatch.EventCoalescer;
+import org.openmrs.module.interop.api.dispatch.EventDispatcher;
+import org.openmrs.module.interop.api.dispatch.EventPriority;
+import org.openmrs.module.interop.api.dispatch.EventTask;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
+import org.openmrs.module.interop.api.model.OutboxEntry;
 import org.openmrs.module.interop.utils.OauthUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -42,39 +61,52 @@ public abstract class BaseObserver {
 	@Qualifier("fhirR4")
 	private FhirContext fhirContext;
 	
+	@Autowired
+	private EventDispatcher eventDispatcher;
+	
+	@Autowired
+	private EventCoalescer eventCoalescer;
+	
+	@Autowired
+	private InteropService interopService;
+	
+	@Autowired
+	private OutboxDrainer outboxDrainer;
+	
+	@Autowired
+	private PublisherRegistry publisherRegistry;
+	
+	@Autowired
+	private DeliveryCoordinator deliveryCoordinator;
+	
+	@Autowired
+	private RoutingTable routingTable;
+	
+	@Autowired
+	private ContentDeduplicator contentDeduplicator;
+	
 	@Setter
 	@Getter
 	public DaemonToken daemonToken;
 	
 	/**
-	 * Process the message and gets the UUID of the OpenMRS Object modified or created, or deleted
+	 * Reads the envelope of a message delivered straight to this observer and handles it. Messages
+	 * routed by the {@link org.openmrs.module.interop.api.dispatch.InteropEventListener} skip this and
+	 * go to {@link #onEvent(EventEnvelope)} with the envelope it already parsed.
 	 *
-	 * @param message the emitted event message to be processed.
-	 * @return UUID of the OpenMRS Object
+	 * @param message the emitted event message
 	 */
-	protected Optional<EventMetadata> processMessage(Message message) {
-		EventMetadata metadata = new EventMetadata();
-		if (message instanceof MapMessage) {
-			MapMessage mapMessage = (MapMessage) message;
-			try {
-				String uuid = mapMessage.getString("uuid");
-				metadata.addProperty("uuid", uuid);
-				
-				//retrieve destination message then determine the action
-				String destinationMessage = mapMessage.getString("destination");
-				determineAction(Optional.ofNullable(destinationMessage)).ifPresent(action -> {
-					metadata.addProperty("action", action);
-				});
-				
-				log.error("metadata {}", metadata);
-			}
-			catch (JMSException e) {
-				log.error("Exception caught while trying to get patient uuid or Destination message for event", e);
-			}
-		}
-		return Optional.of(metadata);
+	public void onMessage(Message message) {
+		EventEnvelope.from(message).ifPresent(this::onEvent);
 	}
 	
+	/**
+	 * Handles an event for the class this observer is subscribed to
+	 *
+	 * @param envelope the event envelope
+	 */
+	public abstract void onEvent(@NotNull EventEnvelope envelope);
+	
 	/**
 	 * Determines the database operation/activity performed
 	 *
@@ -83,53 +115,268 @@ public abstract class BaseObserver {
 	 */
 	protected Optional<Event.Action> determineAction(@NotNull Optional<String> destinationMessage) {
 		// destination = topic://UPDATED:org.openmrs.Patient
-		String action = "";
-		if (destinationMessage.isPresent()) {
-			action = destinationMessage.get().split(":(?://)?")[1];
-		}
-		switch (action) {
-			case "CREATED":
-				return Optional.of(Event.Action.CREATED);
-			case "UPDATED":
-				return Optional.of(Event.Action.UPDATED);
-			case "VOIDED":
-				return Optional.of(Event.Action.VOIDED);
-			case "UNVOIDED":
-				return Optional.of(Event.Action.UNVOIDED);
-			case "RETIRED":
-				return Optional.of(Event.Action.RETIRED);
-			case "UNRETIRED":
-				return Optional.of(Event.Action.UNRETIRED);
-			case "PURGED":
-				return Optional.of(Event.Action.PURGED);
-			default:
-				return Optional.empty();
+		return destinationMessage.flatMap(EventEnvelope::parseAction);
+	}
+	
+	public abstract Class<?> clazz();
+	
+	/**
+	 * Hands the prepared event task over to the shared {@link EventDispatcher}. Events of this observer
+	 * for the same entity arriving within the coalescing window are collapsed into the latest one, and
+	 * tasks for the same patient run in the order they are dispatched, ahead of lower priority ones.
+	 *
+	 * @param envelope the event envelope
+	 * @param task the task that prepares and publishes the FHIR resource(s) for the event
+	 */
+	protected void dispatch(@NotNull EventEnvelope envelope, @NotNull Runnable task) {
+		// several observers may handle the same entity, each keeps its own latest event
+		String entityKey = getClass().getName() + "|" + envelope.getEntityClass() + ":" + envelope.getUuid();
+		EventPriority priority = eventDispatcher.priorityOf(envelope.getEntityClass(), envelope.getAction());
+		EventTask eventTask = new EventTask(envelope, task);
+		String bulkhead = clazz().getSimpleName();
+		// resolved here, the coalescer's timer is shared by all events and must not wait on the database
+		String orderingKey = getOrderingKey(envelope);
+		eventCoalescer.submit(entityKey, () -> eventDispatcher.offer(bulkhead, orderingKey, priority, eventTask),
+		    () -> eventDispatcher.execute(bulkhead, orderingKey, priority, eventTask));
+	}
+	
+	/**
+	 * Resolves the key used to order events, the UUID of the patient the entity belongs to. Falls back
+	 * to the entity UUID when the patient can't be resolved.
+	 *
+	 * @param envelope the event envelope
+	 * @return the ordering key
+	 */
+	protected String getOrderingKey(@NotNull EventEnvelope envelope) {
+		String uuid = envelope.getUuid();
+		// the JMS listener thread has no OpenMRS session of its own, replayed events already have one
+		boolean openedSession = !Context.isSessionOpen();
+		try {
+			if (openedSession) {
+				Context.openSession();
+			}
+			String patientUuid = interopService.getPatientUuid(clazz(), uuid);
+			return patientUuid != null ? patientUuid : uuid;
+		}
+		catch (Exception e) {
+			log.warn("Unable to resolve the patient for {} with UUID {}", clazz().getSimpleName(), uuid, e);
+			return uuid;
 		}
+		finally {
+			if (openedSession) {
+				Context.closeSession();
+			}
+		}
+	}
+	
+	/**
+	 * Chooses the enabled publishers a resource goes to, see {@link RoutingTable}. Observers that build
+	 * their resources from scratch can check this first and skip the work when nobody consumes them.
+	 *
+	 * @param resourceType the FHIR resource type
+	 * @param encounterTypeUuid the encounter type the resource is created for, or null
+	 * @return the publishers the resource goes to, empty if it shouldn't be published
+	 */
+	protected List<Publisher> route(@NotNull String resourceType, String encounterTypeUuid) {
+		return routingTable.route(resourceType, encounterTypeUuid, publisherRegistry.getEnabledPublishers());
 	}
 	
+	/**
+	 * Publishes the resource to the publishers its type is routed to
+	 *
+	 * @param resource the resource to publish
+	 * @see #publish(IAnyResource, List)
+	 */
 	public void publish(@NotNull IAnyResource resource) {
+		publish(resource, route(resource.fhirType(), null));
+	}
+	
+	/**
+	 * Encodes the resource once and hands the same payload to each publisher, through the outbox when
+	 * it is running. Otherwise the publishers deliver concurrently and this returns once each has
+	 * acknowledged, failed or timed out. Nothing is encoded when there are no publishers, and
+	 * publishers that were last delivered the same content are left out, see
+	 * {@link ContentDeduplicator}.
+	 *
+	 * @param resource the resource to publish
+	 * @param publishers the publishers the resource goes to, see {@link #route(String, String)}
+	 */
+	public void publish(@NotNull IAnyResource resource, @NotNull List<Publisher> publishers) {
+		if (publishers.isEmpty()) {
+			log.debug("No publisher is routed {} with ID {}", resource.fhirType(), resource.getId());
+			return;
+		}
+		Date encoded = new Date();
+		Map<EncodedPayload, String> contentKeys = new IdentityHashMap<>();
+		Map<EncodedPayload, String> contentHashes = new IdentityHashMap<>();
+		EncodedPayload payload = encode(resource, contentKeys, contentHashes);
+		publishers = changedFor(publishers, payload, contentKeys, contentHashes);
+		if (publishers.isEmpty()) {
+			log.debug("{} is unchanged since it was last delivered", payload);
+			return;
+		}
+		log.debug("Publishing {}", payload);
+		
+		if (outboxDrainer.isRunning()) {
+			Map<Publisher, List<EncodedPayload>> payloads = new LinkedHashMap<>();
+			for (Publisher publisher : publishers) {
+				payloads.put(publisher, Collections.singletonList(payload));
+			}
+			enqueue(payloads, contentKeys, contentHashes,
+			    Collections.singletonMap(payload, DeliveryChannel.orderingKeyOf(fhirContext, resource)));
+			return;
+		}
+		
 		OauthUtil oauthUtil = new OauthUtil();
-		log.error("Bundled resources :: {}",
-		    fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(resource));
+		Map<Publisher, CompletableFuture<DeliveryReceipt>> deliveries = deliveryCoordinator.publish(publishers, payload,
+		    oauthUtil.getBasicAuthToken());
+		deliveries.forEach((publisher, delivery) -> {
+			Exception error = DeliveryCoordinator.await(delivery);
+			if (error != null) {
+				log.error("Unable to publish resource with ID {} to {}", resource.getId(),
+				    publisher.getClass().getSimpleName(), error);
+			} else {
+				log.info("Published {}", delivery.join());
+				recordDelivered(publisher, Collections.singletonList(payload), contentKeys, contentHashes, encoded);
+			}
+		});
+	}
+	
+	/**
+	 * Publishes resources that are ready together, e.g. a medication and the request for it. Each
+	 * resource is routed on its own and only encoded if it goes anywhere. Without the outbox each
+	 * publisher gets its resources as one batch, see
+	 * {@link Publisher#publishBatch(FhirContext, List, String)}.
+	 *
+	 * @param resources the resources to publish
+	 */
+	public void publish(@NotNull List<? extends IAnyResource> resources) {
+		if (resources.size() == 1) {
+			publish(resources.get(0));
+			return;
+		}
+		Date encoded = new Date();
+		Map<Publisher, List<EncodedPayload>> payloads = new LinkedHashMap<>();
+		Map<EncodedPayload, String> contentKeys = new IdentityHashMap<>();
+		Map<EncodedPayload, String> contentHashes = new IdentityHashMap<>();
+		Map<EncodedPayload, String> orderingKeys = new IdentityHashMap<>();
+		for (IAnyResource resource : resources) {
+			List<Publisher> publishers = route(resource.fhirType(), null);
+			if (publishers.isEmpty()) {
+				log.debug("No publisher is routed {} with ID {}", resource.fhirType(), resource.getId());
+				continue;
+			}
+			EncodedPayload payload = encode(resource, contentKeys, contentHashes);
+			List<Publisher> changed = changedFor(publishers, payload, contentKeys, contentHashes);
+			for (Publisher publisher : changed) {
+				payloads.computeIfAbsent(publisher, key -> new ArrayList<>(resources.size())).add(payload);
+			}
+			if (!changed.isEmpty() && outboxDrainer.isRunning()) {
+				orderingKeys.put(payload, DeliveryChannel.orderingKeyOf(fhirContext, resource));
+			}
+		}
+		if (payloads.isEmpty()) {
+			return;
+		}
+		log.debug("Publishing {}", payloads.values());
+		
+		if (outboxDrainer.isRunning()) {
+			enqueue(payloads, contentKeys, contentHashes, orderingKeys);
+			return;
+		}
 		
-		this.getPublishers().forEach(publisher -> {
-			Publisher newInstancePublisher;
-			try {
-				newInstancePublisher = publisher.getDeclaredConstructor().newInstance();
+		OauthUtil oauthUtil = new OauthUtil();
+		String serverToken = oauthUtil.getBasicAuthToken();
+		Map<Publisher, CompletableFuture<Void>> deliveries = new LinkedHashMap<>();
+		payloads.forEach((publisher, batch) -> deliveries.putAll(
+		    deliveryCoordinator.publishBatch(Collections.singletonList(publisher), batch, serverToken)));
+		deliveries.forEach((publisher, delivery) -> {
+			List<EncodedPayload> batch = payloads.get(publisher);
+			Exception error = DeliveryCoordinator.await(delivery);
+			if (error != null) {
+				log.error("Unable to publish {} to {}", batch, publisher.getClass().getSimpleName(), error);
+			} else {
+				log.info("Published {} to {}", batch, publisher.getClass().getSimpleName());
+				recordDelivered(publisher, batch, contentKeys, contentHashes, encoded);
 			}
-			catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-				log.error("Unable to instantiate {} publisher class", publisher.getSimpleName());
-				throw new RuntimeException(e);
+		});
+	}
+	
+	/**
+	 * Encodes the resource and remembers the content key of the payload so its delivery can be
+	 * recorded. While skipping unchanged content is enabled the volatile meta is left out first and the
+	 * payload hashed, see {@link ContentDeduplicator#normalize(IAnyResource)}.
+	 */
+	private EncodedPayload encode(IAnyResource resource, Map<EncodedPayload, String> contentKeys,
+	        Map<EncodedPayload, String> contentHashes) {
+		String contentKey = ContentDeduplicator.keyOf(resource);
+		boolean deduplicate = contentKey != null && contentDeduplicator.isEnabled();
+		if (deduplicate) {
+			ContentDeduplicator.normalize(resource);
+		}
+		EncodedPayload payload = EncodedPayload.encode(fhirContext, resource);
+		if (contentKey != null) {
+			contentKeys.put(payload, contentKey);
+		}
+		if (deduplicate) {
+			contentHashes.put(payload, ContentDeduplicator.hash(payload));
+		}
+		return payload;
+	}
+	
+	/**
+	 * Leaves out the publishers that were last delivered the same content for the resource
+	 */
+	private List<Publisher> changedFor(List<Publisher> publishers, EncodedPayload payload,
+	        Map<EncodedPayload, String> contentKeys, Map<EncodedPayload, String> contentHashes) {
+		String contentHash = contentHashes.get(payload);
+		if (contentHash == null) {
+			return publishers;
+		}
+		String contentKey = contentKeys.get(payload);
+		List<Publisher> changed = new ArrayList<>(publishers.size());
+		for (Publisher publisher : publishers) {
+			if (!contentDeduplicator.isUnchanged(PublisherRegistry.nameOf(publisher), contentKey, contentHash)) {
+				changed.add(publisher);
+			}
+		}
+		return changed;
+	}
+	
+	private void recordDelivered(Publisher publisher, List<EncodedPayload> payloads,
+	        Map<EncodedPayload, String> contentKeys, Map<EncodedPayload, String> contentHashes, Date contentDate) {
+		for (EncodedPayload payload : payloads) {
+			String contentKey = contentKeys.get(payload);
+			if (contentKey != null) {
+				contentDeduplicator.recordDelivered(PublisherRegistry.nameOf(publisher), contentKey,
+				    contentHashes.get(payload), contentDate);
 			}
-			// Publish to enabled connectors
-			if (newInstancePublisher.isEnabled()) {
-				log.info("Publishing resource with ID {} to {}", resource.getId(), publisher.getSimpleName());
-				newInstancePublisher.publish(fhirContext, resource, oauthUtil.getBasicAuthToken());
+		}
+	}
+	
+	/**
+	 * Records an outbox entry per publisher and payload, each publisher drains its own entries
+	 */
+	private void enqueue(Map<Publisher, List<EncodedPayload>> payloads, Map<EncodedPayload, String> contentKeys,
+	        Map<EncodedPayload, String> contentHashes, Map<EncodedPayload, String> orderingKeys) {
+		payloads.forEach((publisher, batch) -> {
+			String destination = PublisherRegistry.nameOf(publisher);
+			for (EncodedPayload payload : batch) {
+				OutboxEntry entry = new OutboxEntry();
+				entry.setResourceType(payload.getResourceType());
+				entry.setResourceId(payload.getResourceId());
+				entry.setPayload(payload.getText());
+				entry.setDestination(destination);
+				entry.setContentKey(contentKeys.get(payload));
+				entry.setContentHash(contentHashes.get(payload));
+				entry.setOrderingKey(orderingKeys.get(payload));
+				interopService.saveOutboxEntry(entry);
 			}
 		});
+		outboxDrainer.wakeUp();
 	}
 	
-	public Set<Class<? extends Publisher>> getPublishers() {
-		return ClassUtils.getPublishers();
+	public Collection<Publisher> getPublishers() {
+		return publisherRegistry.getPublishers();
 	}
 }
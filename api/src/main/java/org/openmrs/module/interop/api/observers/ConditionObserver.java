@@ -13,17 +13,15 @@ import lombok.extern.slf4j.Slf4j;
 import org.openmrs.Condition;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
-import org.openmrs.api.context.Daemon;
 import org.openmrs.event.Event;
 import org.openmrs.module.interop.api.Subscribable;
-import org.openmrs.module.interop.api.metadata.EventMetadata;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
 import org.openmrs.module.interop.api.processors.translators.InteropConditionTranslator;
 import org.openmrs.module.interop.utils.ObserverUtils;
 import org.openmrs.module.interop.utils.ReferencesUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import javax.jms.Message;
 import javax.validation.constraints.NotNull;
 import java.util.List;
 
@@ -45,13 +43,12 @@ public class ConditionObserver extends BaseObserver implements Subscribable<Cond
 	}
 	
 	@Override
-	public void onMessage(Message message) {
-		processMessage(message)
-		        .ifPresent(metadata -> Daemon.runInDaemonThread(() -> prepareConditionsMessage(metadata), getDaemonToken()));
+	public void onEvent(EventEnvelope envelope) {
+		dispatch(envelope, () -> prepareConditionsMessage(envelope));
 	}
 	
-	private void prepareConditionsMessage(@NotNull EventMetadata metadata) {
-		Condition condition = Context.getConditionService().getConditionByUuid(metadata.getString("uuid"));
+	private void prepareConditionsMessage(@NotNull EventEnvelope envelope) {
+		Condition condition = Context.getConditionService().getConditionByUuid(envelope.getUuid());
 		org.hl7.fhir.r4.model.Condition fhirCondition = conditionTranslator.toFhirResource(condition);
 		if (fhirCondition != null) {
 			String reference = fhirCondition.getSubject().getReference();
@@ -62,7 +59,7 @@ public class ConditionObserver extends BaseObserver implements Subscribable<Cond
 			}
 			this.publish(fhirCondition);
 		} else {
-			log.error("Couldn't find condition with UUID {} ", metadata.getString("uuid"));
+			log.error("Couldn't find condition with UUID {} ", envelope.getUuid());
 		}
 	}
 }
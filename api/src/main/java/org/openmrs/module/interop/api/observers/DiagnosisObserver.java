@@ -14,17 +14,15 @@ import org.openmrs.ConditionVerificationStatus;
 import org.openmrs.Diagnosis;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
-import org.openmrs.api.context.Daemon;
 import org.openmrs.event.Event;
 import org.openmrs.module.interop.api.Subscribable;
-import org.openmrs.module.interop.api.metadata.EventMetadata;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
 import org.openmrs.module.interop.api.processors.translators.InteropConditionTranslator;
 import org.openmrs.module.interop.utils.ObserverUtils;
 import org.openmrs.module.interop.utils.ReferencesUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import javax.jms.Message;
 import javax.validation.constraints.NotNull;
 import java.util.List;
 
@@ -46,13 +44,12 @@ public class DiagnosisObserver extends BaseObserver implements Subscribable<Diag
 	}
 	
 	@Override
-	public void onMessage(Message message) {
-		processMessage(message)
-		        .ifPresent(metadata -> Daemon.runInDaemonThread(() -> prepareDiagnosisMessage(metadata), getDaemonToken()));
+	public void onEvent(EventEnvelope envelope) {
+		dispatch(envelope, () -> prepareDiagnosisMessage(envelope));
 	}
 	
-	private void prepareDiagnosisMessage(@NotNull EventMetadata metadata) {
-		Diagnosis diagnosis = Context.getDiagnosisService().getDiagnosisByUuid(metadata.getString("uuid"));
+	private void prepareDiagnosisMessage(@NotNull EventEnvelope envelope) {
+		Diagnosis diagnosis = Context.getDiagnosisService().getDiagnosisByUuid(envelope.getUuid());
 		if (diagnosis.getCertainty() == null || diagnosis.getCertainty().equals(ConditionVerificationStatus.PROVISIONAL))
 			return;
 		org.hl7.fhir.r4.model.Condition fhirCondition = diagnosisTranslator.toFhirResource(diagnosis);
@@ -65,7 +62,7 @@ public class DiagnosisObserver extends BaseObserver implements Subscribable<Diag
 			}
 			this.publish(fhirCondition);
 		} else {
-			log.error("Couldn't find diagnosis with UUID {} ", metadata.getString("uuid"));
+			log.error("Couldn't find diagnosis with UUID {} ", envelope.getUuid());
 		}
 	}
 }
@@ -25,15 +25,15 @@ import org.hl7.fhir.r4.model.ServiceRequest;
 import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.api.context.Context;
-import org.openmrs.api.context.Daemon;
 import org.openmrs.event.Event;
 import org.openmrs.module.fhir2.api.translators.ConceptTranslator;
 import org.openmrs.module.fhir2.api.translators.EncounterReferenceTranslator;
 import org.openmrs.module.fhir2.api.translators.EncounterTranslator;
 import org.openmrs.module.fhir2.api.translators.ObservationTranslator;
 import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.api.Publisher;
 import org.openmrs.module.interop.api.Subscribable;
-import org.openmrs.module.interop.api.metadata.EventMetadata;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
 import org.openmrs.module.interop.api.processors.AllergyIntoleranceProcessor;
 import org.openmrs.module.interop.api.processors.AppointmentProcessor;
 import org.openmrs.module.interop.api.processors.ComplaintsProcessor;
@@ -51,7 +51,6 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
-import javax.jms.Message;
 import javax.validation.constraints.NotNull;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -101,6 +100,9 @@ public class EncounterObserver extends BaseObserver implements Subscribable<org.
 	
 	private LabResultsProcessor labResultsProcessor;
 	
+	@Autowired
+	private EncounterTypeFilter encounterTypeFilter;
+	
 	@Override
 	public Class<?> clazz() {
 		return Encounter.class;
@@ -112,17 +114,22 @@ public class EncounterObserver extends BaseObserver implements Subscribable<org.
 	}
 	
 	@Override
-	public void onMessage(Message message) {
-		processMessage(message).ifPresent(metadata -> {
-		    //formatter:off
-		    Daemon.runInDaemonThread(() -> prepareEncounterMessage(metadata), getDaemonToken());
-			//formatter:on
-		});
+	public void onEvent(EventEnvelope envelope) {
+		dispatch(envelope, () -> prepareEncounterMessage(envelope));
 	}
 	
-	private void prepareEncounterMessage(@NotNull EventMetadata metadata) {
+	private void prepareEncounterMessage(@NotNull EventEnvelope envelope) {
 		//Create bundle
-		Encounter encounter = Context.getEncounterService().getEncounterByUuid(metadata.getString("uuid"));
+		Encounter encounter = Context.getEncounterService().getEncounterByUuid(envelope.getUuid());
+		if (encounter == null) {
+			log.debug("Skipping encounter {}, it no longer exists", envelope.getUuid());
+			return;
+		}
+		List<Publisher> publishers = route("Bundle", encounter.getEncounterType().getUuid());
+		if (publishers.isEmpty()) {
+			log.debug("Skipping encounter {}, no publisher is routed its bundle", envelope.getUuid());
+			return;
+		}
 		Bundle preparedBundle = new Bundle();
 		preparedBundle.setType(Bundle.BundleType.TRANSACTION);
 		
@@ -147,6 +154,14 @@ public class EncounterObserver extends BaseObserver implements Subscribable<org.
 		encounterBundleEntryComponent.setResource(fhirEncounter);
 		preparedBundle.addEntry(encounterBundleEntryComponent);
 		
+		// the encounter itself is always published, the processors only add to it for their encounter types
+		if (!encounterTypeFilter.accepts(encounter.getEncounterType().getUuid())) {
+			log.debug("Publishing encounter {} without processing, its encounter type isn't enabled",
+			    envelope.getUuid());
+			this.publish(preparedBundle, publishers);
+			return;
+		}
+		
 		/* Todo: Specify which observations to include */
 		//Observations
 		List<Obs> encounterObservations = new ArrayList<>(encounter.getObs());
@@ -222,7 +237,7 @@ public class EncounterObserver extends BaseObserver implements Subscribable<org.
 		}
 		
 		this.processFhirResources(encounter, preparedBundle);
-		this.publish(preparedBundle);
+		this.publish(preparedBundle, publishers);
 	}
 	
 	private List<Bundle.BundleEntryComponent> buildCancerScreeningReferralInfo(Encounter encounter) {
@@ -0,0 +1,119 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.observers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.utils.GlobalPropertySnapshot;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides whether any processor can add resources to the bundle of an encounter, so the processors
+ * are skipped for encounter types none of them is enabled for. The encounter type UUID is checked
+ * against the union of all {@code interop.encounterTypes.*} global properties. The union is cached and
+ * rebuilt with the new value when one of those global properties changes. When no encounter types are
+ * configured nothing is filtered.
+ */
+@Slf4j
+@Component("interop.encounterTypeFilter")
+public class EncounterTypeFilter implements GlobalPropertyListener {
+	
+	private volatile GlobalPropertySnapshot globalProperties;
+	
+	private volatile Set<String> enabledEncounterTypes;
+	
+	@PostConstruct
+	public void register() {
+		Context.getAdministrationService().addGlobalPropertyListener(this);
+	}
+	
+	@PreDestroy
+	public void unregister() {
+		Context.getAdministrationService().removeGlobalPropertyListener(this);
+	}
+	
+	/**
+	 * @param encounterTypeUuid the encounter type UUID
+	 * @return true if the encounter type is enabled for any processor or no types are configured
+	 */
+	public boolean accepts(String encounterTypeUuid) {
+		Set<String> encounterTypes = getEnabledEncounterTypes();
+		return encounterTypes.isEmpty() || encounterTypes.contains(encounterTypeUuid);
+	}
+	
+	public Set<String> getEnabledEncounterTypes() {
+		Set<String> encounterTypes = enabledEncounterTypes;
+		if (encounterTypes == null) {
+			GlobalPropertySnapshot loaded = loadGlobalProperties();
+			synchronized (this) {
+				// a change that came in meanwhile wins over what was read
+				if (enabledEncounterTypes == null) {
+					setGlobalProperties(loaded);
+				}
+				encounterTypes = enabledEncounterTypes;
+			}
+		}
+		return encounterTypes;
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return propertyName != null && propertyName.startsWith(InteropConstant.GP_ENCOUNTER_TYPES_PREFIX);
+	}
+	
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		update(newValue.getProperty(), newValue.getPropertyValue());
+	}
+	
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		update(propertyName, null);
+	}
+	
+	/**
+	 * The change isn't committed yet, so the new value is applied to the cached global properties
+	 * rather than read
+	 */
+	private synchronized void update(String propertyName, String value) {
+		GlobalPropertySnapshot current = globalProperties;
+		setGlobalProperties((current != null ? current : loadGlobalProperties()).with(propertyName, value));
+	}
+	
+	private GlobalPropertySnapshot loadGlobalProperties() {
+		return GlobalPropertySnapshot.load(Context.getAdministrationService(),
+		    InteropConstant.GP_ENCOUNTER_TYPES_PREFIX);
+	}
+	
+	private void setGlobalProperties(GlobalPropertySnapshot properties) {
+		Set<String> encounterTypes = new HashSet<>();
+		for (String value : properties.getValues().values()) {
+			for (String uuid : value.split(",")) {
+				if (StringUtils.isNotBlank(uuid)) {
+					encounterTypes.add(uuid.trim());
+				}
+			}
+		}
+		log.debug("Enabled encounter types {}", encounterTypes);
+		globalProperties = properties;
+		enabledEncounterTypes = Collections.unmodifiableSet(encounterTypes);
+	}
+}
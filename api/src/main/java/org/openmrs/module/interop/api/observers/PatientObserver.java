@@ -15,17 +15,15 @@ import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Provenance;
 import org.hl7.fhir.r4.model.Resource;
 import org.openmrs.Patient;
-import org.openmrs.api.context.Daemon;
 import org.openmrs.event.Event;
 import org.openmrs.module.fhir2.api.FhirPatientService;
 import org.openmrs.module.interop.InteropConstant;
 import org.openmrs.module.interop.api.Subscribable;
-import org.openmrs.module.interop.api.metadata.EventMetadata;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
 import org.openmrs.module.interop.utils.ObserverUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import javax.jms.Message;
 import javax.validation.constraints.NotNull;
 import java.util.ArrayList;
 import java.util.List;
@@ -40,19 +38,18 @@ public class PatientObserver extends BaseObserver implements Subscribable<Patien
 	private FhirPatientService fhirPatientService;
 	
 	@Override
-	public void onMessage(Message message) {
-		processMessage(message)
-		        .ifPresent(metadata -> Daemon.runInDaemonThread(() -> preparePatientMessage(metadata), getDaemonToken()));
+	public void onEvent(EventEnvelope envelope) {
+		dispatch(envelope, () -> preparePatientMessage(envelope));
 	}
 	
-	private void preparePatientMessage(@NotNull EventMetadata metadata) {
-		org.hl7.fhir.r4.model.Patient patientResource = fhirPatientService.get(metadata.getString("uuid"));
+	private void preparePatientMessage(@NotNull EventEnvelope envelope) {
+		org.hl7.fhir.r4.model.Patient patientResource = fhirPatientService.get(envelope.getUuid());
 		if (patientResource != null) {
 			//patientResource.getContained().clear();
 			//patientResource.setContained(resolvePatientProvence(patientResource.getContained()));
 			this.publish(patientResource);
 		} else {
-			log.error("Couldn't find patient with UUID {} ", metadata.getString("uuid"));
+			log.error("Couldn't find patient with UUID {} ", envelope.getUuid());
 		}
 	}
 	
@@ -18,20 +18,19 @@ import org.openmrs.Order;
 import org.openmrs.Patient;
 import org.openmrs.TestOrder;
 import org.openmrs.api.context.Context;
-import org.openmrs.api.context.Daemon;
 import org.openmrs.event.Event;
 import org.openmrs.module.fhir2.api.translators.MedicationRequestTranslator;
 import org.openmrs.module.fhir2.api.translators.MedicationTranslator;
 import org.openmrs.module.fhir2.api.translators.ServiceRequestTranslator;
 import org.openmrs.module.interop.api.Subscribable;
-import org.openmrs.module.interop.api.metadata.EventMetadata;
+import org.openmrs.module.interop.api.metadata.EventEnvelope;
 import org.openmrs.module.interop.utils.ObserverUtils;
 import org.openmrs.module.interop.utils.ReferencesUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import javax.jms.Message;
 import javax.validation.constraints.NotNull;
+import java.util.Arrays;
 import java.util.List;
 
 @Slf4j
@@ -58,13 +57,12 @@ public class PatientOrdersObserver extends BaseObserver implements Subscribable<
 	}
 	
 	@Override
-	public void onMessage(Message message) {
-		processMessage(message)
-		        .ifPresent(metadata -> Daemon.runInDaemonThread(() -> prepareOrderMessage(metadata), getDaemonToken()));
+	public void onEvent(EventEnvelope envelope) {
+		dispatch(envelope, () -> prepareOrderMessage(envelope));
 	}
 	
-	private void prepareOrderMessage(@NotNull EventMetadata metadata) {
-		Order createdOrder = Context.getOrderService().getOrderByUuid(metadata.getString("uuid"));
+	private void prepareOrderMessage(@NotNull EventEnvelope envelope) {
+		Order createdOrder = Context.getOrderService().getOrderByUuid(envelope.getUuid());
 		
 		if (createdOrder.getOrderType().getUuid().equals("131168f4-15f5-102d-96e4-000c29c2a5d7")) {
 			DrugOrder order = (DrugOrder) createdOrder;
@@ -74,18 +72,20 @@ public class PatientOrdersObserver extends BaseObserver implements Subscribable<
 			}
 			MedicationRequest medicationRequest = medicationRequestTranslator.toFhirResource(order);
 			if (medicationRequest != null) {
-				if (medication != null) {
-					this.publish(medication);
-				}
 				String reference = medicationRequest.getSubject().getReference();
 				String arr[] = reference.split("/");
 				if (arr.length == 2) {
 					Patient patient = Context.getPatientService().getPatientByUuid(arr[1]);
 					medicationRequest.setSubject(ReferencesUtil.buildPatientReference(patient));
 				}
-				this.publish(medicationRequest);
+				// the medication goes out with the request that references it
+				if (medication != null) {
+					this.publish(Arrays.asList(medication, medicationRequest));
+				} else {
+					this.publish(medicationRequest);
+				}
 			} else {
-				log.error("Couldn't find allergy with UUID {} ", metadata.getString("uuid"));
+				log.error("Couldn't find allergy with UUID {} ", envelope.getUuid());
 			}
 		} else if (createdOrder.getOrderType().getUuid().equals("52a447d3-a64a-11e3-9aeb-50e549534c5e")) {
 			TestOrder testOrder = (TestOrder) createdOrder;
@@ -0,0 +1,92 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+
+/**
+ * The values of a group of global properties at one point in time. A
+ * {@link org.openmrs.api.GlobalPropertyListener} is told about a change before it is committed, so
+ * reading the global properties again from there could still return the old value. Listeners swap in
+ * a snapshot {@link #with(String, String)} the new value instead.
+ */
+public final class GlobalPropertySnapshot {
+	
+	private final Map<String, String> values;
+	
+	private GlobalPropertySnapshot(Map<String, String> values) {
+		this.values = values;
+	}
+	
+	/**
+	 * @param administrationService reads the global properties
+	 * @param prefix the prefix of the global properties to include
+	 * @param propertyNames further global properties to include
+	 * @return the current values of the global properties
+	 */
+	public static GlobalPropertySnapshot load(AdministrationService administrationService, String prefix,
+	        String... propertyNames) {
+		Map<String, String> values = new HashMap<>();
+		if (prefix != null) {
+			for (GlobalProperty property : administrationService.getGlobalPropertiesByPrefix(prefix)) {
+				if (property.getPropertyValue() != null) {
+					values.put(property.getProperty(), property.getPropertyValue());
+				}
+			}
+		}
+		for (String propertyName : propertyNames) {
+			String value = administrationService.getGlobalProperty(propertyName);
+			if (value != null) {
+				values.put(propertyName, value);
+			}
+		}
+		return new GlobalPropertySnapshot(Collections.unmodifiableMap(values));
+	}
+	
+	/**
+	 * @param propertyName the global property that changed
+	 * @param value its new value, null if it was deleted
+	 * @return a snapshot with the new value, this one is left as is
+	 */
+	public GlobalPropertySnapshot with(String propertyName, String value) {
+		Map<String, String> changed = new HashMap<>(values);
+		if (value != null) {
+			changed.put(propertyName, value);
+		} else {
+			changed.remove(propertyName);
+		}
+		return new GlobalPropertySnapshot(Collections.unmodifiableMap(changed));
+	}
+	
+	/**
+	 * @param propertyName the global property
+	 * @return its value, or null if it isn't set
+	 */
+	public String get(String propertyName) {
+		return values.get(propertyName);
+	}
+	
+	public String get(String propertyName, String defaultValue) {
+		String value = values.get(propertyName);
+		return value != null ? value : defaultValue;
+	}
+	
+	/**
+	 * @return the values by global property name
+	 */
+	public Map<String, String> getValues() {
+		return values;
+	}
+}
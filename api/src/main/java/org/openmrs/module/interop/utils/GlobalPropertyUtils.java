@@ -0,0 +1,65 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.context.Context;
+
+@Slf4j
+public class GlobalPropertyUtils {
+	
+	public static int getInteger(String propertyName, int defaultValue) {
+		String value = getValue(propertyName);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid integer value '{}' for global property {}, using {}", value, propertyName, defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	public static long getLong(String propertyName, long defaultValue) {
+		String value = getValue(propertyName);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid long value '{}' for global property {}, using {}", value, propertyName, defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	public static <T extends Enum<T>> T getEnum(String propertyName, Class<T> enumType, T defaultValue) {
+		String value = getValue(propertyName);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Enum.valueOf(enumType, value.toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			log.warn("Invalid value '{}' for global property {}, using {}", value, propertyName, defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	private static String getValue(String propertyName) {
+		String value = Context.getAdministrationService().getGlobalProperty(propertyName);
+		return StringUtils.isBlank(value) ? null : value.trim();
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+	
+	private static final long LATENCY = 100_000_000L;
+	
+	private final AdaptiveConcurrencyLimit concurrencyLimit = new AdaptiveConcurrencyLimit(1, 8, 1);
+	
+	@Test
+	public void shouldGrowWhileLatencyStaysFlat() {
+		for (int i = 0; i < 3; i++) {
+			concurrencyLimit.update(LATENCY, false, concurrencyLimit.getLimit());
+		}
+		assertThat(concurrencyLimit.getLimit(), equalTo(4));
+		
+		for (int i = 0; i < 10; i++) {
+			concurrencyLimit.update(LATENCY, false, concurrencyLimit.getLimit());
+		}
+		assertThat(concurrencyLimit.getLimit(), equalTo(8));
+	}
+	
+	@Test
+	public void shouldNotGrowWhenLimitIsNotUsed() {
+		concurrencyLimit.update(LATENCY, false, 1);
+		concurrencyLimit.update(LATENCY, false, 2);
+		assertThat(concurrencyLimit.getLimit(), equalTo(3));
+		
+		concurrencyLimit.update(LATENCY, false, 2);
+		assertThat(concurrencyLimit.getLimit(), equalTo(3));
+	}
+	
+	@Test
+	public void shouldHalveOnFailure() {
+		grow(6);
+		concurrencyLimit.update(LATENCY, true, 6);
+		assertThat(concurrencyLimit.getLimit(), equalTo(3));
+		
+		concurrencyLimit.update(LATENCY, true, 3);
+		concurrencyLimit.update(LATENCY, true, 1);
+		assertThat(concurrencyLimit.getLimit(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldHalveWhenLatencyRises() {
+		grow(6);
+		concurrencyLimit.update(LATENCY * 3, false, 6);
+		assertThat(concurrencyLimit.getLimit(), equalTo(3));
+		
+		concurrencyLimit.update(LATENCY + LATENCY / 2, false, 3);
+		assertThat(concurrencyLimit.getLimit(), equalTo(4));
+		assertThat(concurrencyLimit.getBaselineNanos(), equalTo(LATENCY));
+	}
+	
+	private void grow(int limit) {
+		while (concurrencyLimit.getLimit() < limit) {
+			concurrencyLimit.update(LATENCY, false, concurrencyLimit.getLimit());
+		}
+	}
+}
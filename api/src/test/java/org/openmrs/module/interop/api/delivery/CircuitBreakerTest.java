@@ -0,0 +1,110 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+	
+	private final AtomicLong now = new AtomicLong(1000);
+	
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker("TestPublisher", 3, 5000, now::get);
+	
+	@Test
+	public void shouldOpenAfterConsecutiveFailures() {
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordSuccess();
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordFailure();
+		assertThat(circuitBreaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+		
+		circuitBreaker.recordFailure();
+		assertThat(circuitBreaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+		assertThat(circuitBreaker.tryAcquire(), is(false));
+	}
+	
+	@Test
+	public void shouldProbeOnceOpenPeriodIsOver() {
+		open();
+		assertThat(circuitBreaker.tryStartProbe(), is(false));
+		
+		now.addAndGet(5000);
+		assertThat(circuitBreaker.tryStartProbe(), is(true));
+		assertThat(circuitBreaker.tryStartProbe(), is(false));
+		
+		circuitBreaker.recordProbe(false);
+		assertThat(circuitBreaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+		assertThat(circuitBreaker.tryStartProbe(), is(false));
+	}
+	
+	@Test
+	public void shouldAllowSingleTrialDeliveryWhenHalfOpen() {
+		open();
+		now.addAndGet(5000);
+		circuitBreaker.tryStartProbe();
+		circuitBreaker.recordProbe(true);
+		assertThat(circuitBreaker.getState(), equalTo(CircuitBreaker.State.HALF_OPEN));
+		assertThat(circuitBreaker.tryAcquire(), is(true));
+		assertThat(circuitBreaker.tryAcquire(), is(false));
+		
+		circuitBreaker.recordSuccess();
+		assertThat(circuitBreaker.getState(), equalTo(CircuitBreaker.State.CLOSED));
+		assertThat(circuitBreaker.tryAcquire(), is(true));
+	}
+	
+	@Test
+	public void shouldOpenAgainWhenTrialDeliveryFails() {
+		open();
+		now.addAndGet(5000);
+		circuitBreaker.tryStartProbe();
+		circuitBreaker.recordProbe(true);
+		circuitBreaker.tryAcquire();
+		circuitBreaker.recordFailure();
+		assertThat(circuitBreaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+	}
+	
+	@Test
+	public void shouldOpenWhenTrippedAndRecoverThroughProbe() {
+		circuitBreaker.trip("its connection check failed");
+		assertThat(circuitBreaker.getState(), equalTo(CircuitBreaker.State.OPEN));
+		assertThat(circuitBreaker.isAvailable(), is(false));
+		
+		now.addAndGet(5000);
+		assertThat(circuitBreaker.tryStartProbe(), is(true));
+		circuitBreaker.recordProbe(true);
+		assertThat(circuitBreaker.getState(), equalTo(CircuitBreaker.State.HALF_OPEN));
+	}
+	
+	@Test
+	public void shouldTellWhenAnOpenBreakerIsProbed() {
+		assertThat(circuitBreaker.getProbeAt(), is(0L));
+		
+		open();
+		assertThat(circuitBreaker.getProbeAt(), is(6000L));
+		
+		now.addAndGet(7000);
+		circuitBreaker.tryStartProbe();
+		circuitBreaker.recordProbe(false);
+		assertThat(circuitBreaker.getProbeAt(), is(13000L));
+	}
+	
+	private void open() {
+		for (int i = 0; i < 3; i++) {
+			circuitBreaker.recordFailure();
+		}
+	}
+}
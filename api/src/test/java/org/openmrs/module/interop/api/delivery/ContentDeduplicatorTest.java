@@ -0,0 +1,225 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+import org.openmrs.module.interop.api.EncodedPayload;
+import org.openmrs.module.interop.api.InteropService;
+import org.openmrs.module.interop.api.model.ContentHash;
+
+public class ContentDeduplicatorTest {
+	
+	private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+	
+	private static final String DESTINATION = "KafkaConnector";
+	
+	private final Map<String, ContentHash> recorded = new HashMap<>();
+	
+	private final Map<String, Long> pendingOutboxEntries = new HashMap<>();
+	
+	private final Map<String, Long> pendingDeadLetters = new HashMap<>();
+	
+	@Test
+	public void shouldIgnoreVolatileMetaInHash() {
+		Patient first = patient("1", "2024-01-01T10:00:00.000+03:00", "female");
+		Patient second = patient("2", "2024-01-02T11:30:00.000+03:00", "female");
+		Patient changed = patient("2", "2024-01-02T11:30:00.000+03:00", "male");
+		
+		assertThat(hash(first), equalTo(hash(second)));
+		assertThat(hash(first), not(equalTo(hash(changed))));
+		assertThat(hash(first).length(), equalTo(64));
+		assertThat(first.getMeta().getVersionId(), nullValue());
+		assertThat(first.getIdElement().getVersionIdPart(), nullValue());
+	}
+	
+	@Test
+	public void shouldIgnoreVolatileMetaOfBundleEntries() {
+		Bundle first = new Bundle();
+		first.addEntry().setResource(patient("1", "2024-01-01T10:00:00.000+03:00", "female"));
+		Bundle second = new Bundle();
+		second.addEntry().setResource(patient("2", "2024-01-02T11:30:00.000+03:00", "female"));
+		
+		assertThat(hash(first), equalTo(hash(second)));
+	}
+	
+	@Test
+	public void shouldKeepOtherMetaInHash() {
+		Patient first = patient("1", "2024-01-01T10:00:00.000+03:00", "female");
+		Patient tagged = patient("1", "2024-01-01T10:00:00.000+03:00", "female");
+		tagged.getMeta().addTag("http://example.org/tags", "test", null);
+		
+		assertThat(hash(first), not(equalTo(hash(tagged))));
+	}
+	
+	@Test
+	public void shouldFallBackToTheDatabaseOnCacheMiss() {
+		record("Patient/abc", "recorded", new Date());
+		ContentDeduplicator contentDeduplicator = new ContentDeduplicator(interopService(), 10);
+		
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/abc", "recorded"), is(true));
+		assertThat(contentDeduplicator.getCacheMisses(), equalTo(1L));
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/abc", "changed"), is(false));
+		assertThat(contentDeduplicator.getCacheHits(), equalTo(1L));
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/def", "new"), is(false));
+		assertThat(contentDeduplicator.getCacheMisses(), equalTo(2L));
+		assertThat(contentDeduplicator.getSkippedDeliveries(), equalTo(1L));
+	}
+	
+	@Test
+	public void shouldNotSkipRevertedContentWhileAnotherVersionIsPending() {
+		ContentDeduplicator contentDeduplicator = new ContentDeduplicator(interopService(), 10);
+		contentDeduplicator.recordDelivered(DESTINATION, "Patient/abc", "v1", new Date(1000));
+		// v2 failed and waits in the dead letter store, then the change is reverted to v1
+		pendingDeadLetters.put(DESTINATION + "|Patient/abc", 1L);
+		
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/abc", "v1"), is(false));
+		
+		pendingDeadLetters.clear();
+		pendingOutboxEntries.put(DESTINATION + "|Patient/abc", 1L);
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/abc", "v1"), is(false));
+		
+		pendingOutboxEntries.clear();
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/abc", "v1"), is(true));
+		assertThat(contentDeduplicator.getSkippedDeliveries(), equalTo(1L));
+	}
+	
+	@Test
+	public void shouldRecordTheDateOfEveryDelivery() {
+		ContentDeduplicator contentDeduplicator = new ContentDeduplicator(interopService(), 10);
+		contentDeduplicator.recordDelivered(DESTINATION, "Patient/abc", "v1", new Date(1000));
+		contentDeduplicator.recordDelivered(DESTINATION, "Patient/abc", "v1", new Date(3000));
+		
+		assertThat(recorded.get(DESTINATION + "|Patient/abc").getDateChanged(), equalTo(new Date(3000)));
+	}
+	
+	@Test
+	public void shouldRecordDeliveriesThatWereNotHashed() {
+		ContentDeduplicator contentDeduplicator = new ContentDeduplicator(interopService(), 10);
+		contentDeduplicator.recordDelivered(DESTINATION, "Patient/abc", null, new Date(1000));
+		
+		assertThat(recorded.get(DESTINATION + "|Patient/abc").getContentHash(), nullValue());
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/abc", "v1"), is(false));
+	}
+	
+	@Test
+	public void shouldRecordDeliveredContent() {
+		ContentDeduplicator contentDeduplicator = new ContentDeduplicator(interopService(), 10);
+		
+		contentDeduplicator.recordDelivered(DESTINATION, "Patient/abc", "delivered", new Date());
+		
+		assertThat(recorded.get(DESTINATION + "|Patient/abc").getContentHash(), equalTo("delivered"));
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/abc", "delivered"), is(true));
+		assertThat(contentDeduplicator.getCacheHits(), equalTo(1L));
+		assertThat(contentDeduplicator.getCacheMisses(), equalTo(0L));
+	}
+	
+	@Test
+	public void shouldNotReplaceNewerContentWithOlderDelivery() {
+		record("Patient/abc", "newer", new Date(2000));
+		ContentDeduplicator contentDeduplicator = new ContentDeduplicator(interopService(), 10);
+		
+		contentDeduplicator.recordDelivered(DESTINATION, "Patient/abc", "older", new Date(1000));
+		
+		assertThat(recorded.get(DESTINATION + "|Patient/abc").getContentHash(), equalTo("newer"));
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/abc", "newer"), is(true));
+	}
+	
+	@Test
+	public void shouldEvictLeastRecentlyUsedHashes() {
+		ContentDeduplicator contentDeduplicator = new ContentDeduplicator(interopService(), 2);
+		contentDeduplicator.recordDelivered(DESTINATION, "Patient/a", "a", new Date());
+		contentDeduplicator.recordDelivered(DESTINATION, "Patient/b", "b", new Date());
+		contentDeduplicator.isUnchanged(DESTINATION, "Patient/a", "a");
+		contentDeduplicator.recordDelivered(DESTINATION, "Patient/c", "c", new Date());
+		
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/a", "a"), is(true));
+		assertThat(contentDeduplicator.getCacheMisses(), equalTo(0L));
+		// evicted from memory, still found in the database
+		assertThat(contentDeduplicator.isUnchanged(DESTINATION, "Patient/b", "b"), is(true));
+		assertThat(contentDeduplicator.getCacheMisses(), equalTo(1L));
+	}
+	
+	@Test
+	public void shouldKeyResourcesByTypeAndId() {
+		Patient patient = new Patient();
+		patient.setId("abc");
+		assertThat(ContentDeduplicator.keyOf(patient), equalTo("Patient/abc"));
+		assertThat(ContentDeduplicator.keyOf(new Patient()), nullValue());
+	}
+	
+	@Test
+	public void shouldKeyBundleWithoutIdByFirstEntry() {
+		Encounter encounter = new Encounter();
+		encounter.setId("def");
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(encounter);
+		assertThat(ContentDeduplicator.keyOf(bundle), equalTo("Bundle/Encounter/def"));
+	}
+	
+	private static String hash(IAnyResource resource) {
+		ContentDeduplicator.normalize(resource);
+		return ContentDeduplicator.hash(EncodedPayload.encode(FHIR_CONTEXT, resource));
+	}
+	
+	private static Patient patient(String versionId, String lastUpdated, String gender) {
+		return FHIR_CONTEXT.newJsonParser().parseResource(Patient.class,
+		    "{\"resourceType\":\"Patient\",\"id\":\"abc\",\"meta\":{\"versionId\":\"" + versionId
+		            + "\",\"lastUpdated\":\"" + lastUpdated + "\"},\"gender\":\"" + gender + "\"}");
+	}
+	
+	private void record(String resourceKey, String contentHash, Date dateChanged) {
+		ContentHash hash = new ContentHash();
+		hash.setDestination(DESTINATION);
+		hash.setResourceKey(resourceKey);
+		hash.setContentHash(contentHash);
+		hash.setDateChanged(dateChanged);
+		recorded.put(DESTINATION + "|" + resourceKey, hash);
+	}
+	
+	/**
+	 * Keeps the content hashes in {@link #recorded} and the pending entry counts in
+	 * {@link #pendingOutboxEntries} and {@link #pendingDeadLetters} instead of the database
+	 */
+	private InteropService interopService() {
+		return (InteropService) Proxy.newProxyInstance(getClass().getClassLoader(),
+		    new Class<?>[] { InteropService.class }, (proxy, method, args) -> {
+			    switch (method.getName()) {
+				    case "getContentHash":
+					    return recorded.get(args[0] + "|" + args[1]);
+				    case "saveContentHash":
+					    ContentHash hash = (ContentHash) args[0];
+					    recorded.put(hash.getDestination() + "|" + hash.getResourceKey(), hash);
+					    return hash;
+				    case "getNewerOutboxEntryCount":
+					    return pendingOutboxEntries.getOrDefault(args[0] + "|" + args[1], 0L);
+				    case "getNewerDeadLetterEntryCount":
+					    return pendingDeadLetters.getOrDefault(args[0] + "|" + args[1], 0L);
+				    default:
+					    throw new UnsupportedOperationException(method.getName());
+			    }
+		    });
+	}
+}
@@ -0,0 +1,335 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.interop.api.DeliveryReceipt;
+import org.openmrs.module.interop.api.EncodedPayload;
+import org.openmrs.module.interop.api.InteropService;
+import org.openmrs.module.interop.api.Publisher;
+import org.openmrs.module.interop.api.model.ContentHash;
+import org.openmrs.module.interop.api.model.DeadLetterEntry;
+import org.openmrs.module.interop.api.model.OutboxEntry;
+
+public class DeadLetterRetrySchedulerTest {
+	
+	private static final long BASE_DELAY = 1000;
+	
+	private static final long MAX_DELAY = 60000;
+	
+	private static final int MAX_ATTEMPTS = 3;
+	
+	private static final String CONTENT_KEY = "Patient/abc";
+	
+	private static final String CONTENT_HASH = "hash";
+	
+	private final Publisher publisher = new TestPublisher();
+	
+	private final String destination = PublisherRegistry.nameOf(publisher);
+	
+	private final List<DeadLetterEntry> due = new ArrayList<>();
+	
+	private final List<DeadLetterEntry> saved = new ArrayList<>();
+	
+	private final List<DeadLetterEntry> purged = new ArrayList<>();
+	
+	private final List<OutboxEntry> moved = new ArrayList<>();
+	
+	private final Map<String, ContentHash> recorded = new HashMap<>();
+	
+	private long newerOutboxEntries;
+	
+	private TestDeliveryCoordinator deliveryCoordinator;
+	
+	private DeadLetterRetryScheduler scheduler;
+	
+	@Before
+	public void setUp() {
+		InteropService interopService = interopService();
+		PublisherRegistry publisherRegistry = new PublisherRegistry();
+		publisherRegistry.refresh(Collections.singletonList(publisher));
+		deliveryCoordinator = new TestDeliveryCoordinator();
+		scheduler = new DeadLetterRetryScheduler(interopService, publisherRegistry, deliveryCoordinator,
+		        new ContentDeduplicator(interopService, 10), MAX_ATTEMPTS) {
+			
+			@Override
+			String getServerToken() {
+				return "token";
+			}
+		};
+	}
+	
+	@Test
+	public void shouldDoubleDelayAfterEveryAttempt() {
+		Random random = new Random(42);
+		for (int attempts = 1; attempts <= 5; attempts++) {
+			long delay = BASE_DELAY << (attempts - 1);
+			long backoff = DeadLetterRetryScheduler.backoffDelay(attempts, BASE_DELAY, MAX_DELAY, random);
+			assertThat(backoff, greaterThanOrEqualTo(delay / 2));
+			assertThat(backoff, lessThanOrEqualTo(delay));
+		}
+	}
+	
+	@Test
+	public void shouldCapDelayAtMaximum() {
+		Random random = new Random(42);
+		assertThat(DeadLetterRetryScheduler.backoffDelay(1000, BASE_DELAY, MAX_DELAY, random),
+		    lessThanOrEqualTo(MAX_DELAY));
+		assertThat(DeadLetterRetryScheduler.backoffDelay(40, BASE_DELAY, MAX_DELAY, random),
+		    greaterThanOrEqualTo(MAX_DELAY / 2));
+	}
+	
+	@Test
+	public void shouldUseHalfOfDelayWithoutJitter() {
+		Random noJitter = new Random() {
+			
+			@Override
+			public double nextDouble() {
+				return 0;
+			}
+		};
+		assertThat(DeadLetterRetryScheduler.backoffDelay(3, BASE_DELAY, MAX_DELAY, noJitter), equalTo(2000L));
+	}
+	
+	@Test
+	public void shouldMoveFailedOutboxEntryToTheDeadLetterStore() {
+		OutboxEntry entry = outboxEntry();
+		
+		scheduler.recordFailure(entry, publisher, new IllegalStateException("refused"));
+		
+		assertThat(moved, contains(entry));
+		DeadLetterEntry deadLetter = saved.get(0);
+		assertThat(deadLetter.getDestination(), equalTo(destination));
+		assertThat(deadLetter.getContentKey(), equalTo(CONTENT_KEY));
+		assertThat(deadLetter.getContentHash(), equalTo(CONTENT_HASH));
+		assertThat(deadLetter.getDateCreated(), equalTo(entry.getDateCreated()));
+		assertThat(deadLetter.getAttempts(), equalTo(1));
+		assertThat(deadLetter.getError(), equalTo("refused"));
+	}
+	
+	@Test
+	public void shouldDropEntryOfADeliveryThatWentThroughAfterItsTimeout() {
+		OutboxEntry entry = outboxEntry();
+		CompletableFuture<Void> lateDelivery = new CompletableFuture<>();
+		scheduler.recordFailure(entry, publisher, new DeliveryTimeoutException("slow", lateDelivery, Runnable::run));
+		DeadLetterEntry deadLetter = saved.get(0);
+		
+		lateDelivery.complete(null);
+		due.add(deadLetter);
+		scheduler.retryBatch();
+		
+		assertThat(purged, contains(deadLetter));
+		assertThat(deliveryCoordinator.published, equalTo(0));
+	}
+	
+	@Test
+	public void shouldDropEntryThatANewerVersionSuperseded() {
+		DeadLetterEntry entry = deadLetterEntry(1);
+		due.add(entry);
+		newerOutboxEntries = 1;
+		
+		scheduler.retryBatch();
+		
+		assertThat(purged, contains(entry));
+		assertThat(saved, empty());
+		assertThat(deliveryCoordinator.published, equalTo(0));
+	}
+	
+	@Test
+	public void shouldPostponeEntryUntilTheOpenCircuitIsProbed() {
+		DeadLetterEntry entry = deadLetterEntry(1);
+		due.add(entry);
+		deliveryCoordinator.circuitBreaker.recordFailure();
+		
+		scheduler.retryBatch();
+		
+		assertThat(saved, contains(entry));
+		assertThat(entry.getNextAttempt().getTime(),
+		    greaterThanOrEqualTo(deliveryCoordinator.circuitBreaker.getProbeAt()));
+		assertThat(entry.getAttempts(), equalTo(1));
+		assertThat(purged, empty());
+		assertThat(deliveryCoordinator.published, equalTo(0));
+	}
+	
+	@Test
+	public void shouldPurgeAndRecordEntryThatIsDelivered() {
+		DeadLetterEntry entry = deadLetterEntry(1);
+		due.add(entry);
+		
+		scheduler.retryBatch();
+		
+		assertThat(purged, contains(entry));
+		ContentHash delivered = recorded.get(destination + "|" + CONTENT_KEY);
+		assertThat(delivered.getContentHash(), equalTo(CONTENT_HASH));
+		assertThat(delivered.getDateChanged(), equalTo(entry.getDateCreated()));
+	}
+	
+	@Test
+	public void shouldRescheduleEntryThatFailsAgain() {
+		DeadLetterEntry entry = deadLetterEntry(1);
+		due.add(entry);
+		deliveryCoordinator.outcome = new IllegalStateException("refused");
+		
+		scheduler.retryBatch();
+		
+		assertThat(saved, contains(entry));
+		assertThat(entry.getStatus(), equalTo(DeadLetterEntry.Status.PENDING));
+		assertThat(entry.getAttempts(), equalTo(2));
+		assertThat(entry.getNextAttempt().getTime(), greaterThan(System.currentTimeMillis()));
+		assertThat(recorded.get(destination + "|" + CONTENT_KEY), nullValue());
+	}
+	
+	@Test
+	public void shouldAbandonEntryAfterTheLastAttempt() {
+		DeadLetterEntry entry = deadLetterEntry(MAX_ATTEMPTS - 1);
+		due.add(entry);
+		deliveryCoordinator.outcome = new IllegalStateException("refused");
+		
+		scheduler.retryBatch();
+		
+		assertThat(saved, contains(entry));
+		assertThat(entry.getStatus(), equalTo(DeadLetterEntry.Status.ABANDONED));
+		assertThat(entry.getAttempts(), equalTo(MAX_ATTEMPTS));
+		assertThat(entry.getError(), equalTo("refused"));
+		assertThat(purged, empty());
+	}
+	
+	private OutboxEntry outboxEntry() {
+		OutboxEntry entry = new OutboxEntry();
+		entry.setResourceType("Patient");
+		entry.setResourceId("abc");
+		entry.setPayload("{}");
+		entry.setDestination(destination);
+		entry.setContentKey(CONTENT_KEY);
+		entry.setContentHash(CONTENT_HASH);
+		entry.setDateCreated(new Date(System.currentTimeMillis() - 60000));
+		return entry;
+	}
+	
+	private DeadLetterEntry deadLetterEntry(int attempts) {
+		DeadLetterEntry entry = new DeadLetterEntry();
+		entry.setResourceType("Patient");
+		entry.setResourceId("abc");
+		entry.setPayload("{}");
+		entry.setDestination(destination);
+		entry.setContentKey(CONTENT_KEY);
+		entry.setContentHash(CONTENT_HASH);
+		entry.setDateCreated(new Date(System.currentTimeMillis() - 60000));
+		entry.setAttempts(attempts);
+		entry.setNextAttempt(new Date());
+		return entry;
+	}
+	
+	/**
+	 * Keeps the dead letter entries and content hashes in the lists and maps of the test instead of
+	 * the database
+	 */
+	private InteropService interopService() {
+		return (InteropService) Proxy.newProxyInstance(getClass().getClassLoader(),
+		    new Class<?>[] { InteropService.class }, (proxy, method, args) -> {
+			    switch (method.getName()) {
+				    case "getDueDeadLetterEntries":
+					    List<DeadLetterEntry> entries = new ArrayList<>(due);
+					    due.clear();
+					    return entries;
+				    case "saveDeadLetterEntry":
+					    saved.add((DeadLetterEntry) args[0]);
+					    return args[0];
+				    case "moveToDeadLetter":
+					    moved.add((OutboxEntry) args[0]);
+					    saved.add((DeadLetterEntry) args[1]);
+					    return args[1];
+				    case "purgeDeadLetterEntry":
+					    purged.add((DeadLetterEntry) args[0]);
+					    return null;
+				    case "getNewerOutboxEntryCount":
+					    return newerOutboxEntries;
+				    case "getNewerDeadLetterEntryCount":
+					    return 0L;
+				    case "getContentHash":
+					    return recorded.get(args[0] + "|" + args[1]);
+				    case "saveContentHash":
+					    ContentHash hash = (ContentHash) args[0];
+					    recorded.put(hash.getDestination() + "|" + hash.getResourceKey(), hash);
+					    return hash;
+				    default:
+					    throw new UnsupportedOperationException(method.getName());
+			    }
+		    });
+	}
+	
+	/**
+	 * Answers every delivery with {@link #outcome} instead of reaching the publisher
+	 */
+	private static class TestDeliveryCoordinator extends DeliveryCoordinator {
+		
+		private final CircuitBreaker circuitBreaker = new CircuitBreaker("TestPublisher", 1, 60000);
+		
+		private Exception outcome;
+		
+		private int published;
+		
+		@Override
+		public CircuitBreaker circuitBreakerOf(Publisher publisher) {
+			return circuitBreaker;
+		}
+		
+		@Override
+		public Map<Publisher, CompletableFuture<DeliveryReceipt>> publish(List<Publisher> publishers,
+		        EncodedPayload payload, String serverToken) {
+			published++;
+			CompletableFuture<DeliveryReceipt> delivery = new CompletableFuture<>();
+			if (outcome == null) {
+				delivery.complete(new DeliveryReceipt(PublisherRegistry.nameOf(publishers.get(0)), payload, 0));
+			} else {
+				delivery.completeExceptionally(outcome);
+			}
+			return Collections.singletonMap(publishers.get(0), delivery);
+		}
+	}
+	
+	private static class TestPublisher implements Publisher {
+		
+		@Override
+		public void publish(FhirContext context, IAnyResource resource, String serverToken) {
+		}
+		
+		@Override
+		public void publish(IAnyResource resource) {
+		}
+		
+		@Override
+		public boolean isEnabled() {
+			return true;
+		}
+	}
+}
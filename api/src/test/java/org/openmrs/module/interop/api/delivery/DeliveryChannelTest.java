@@ -0,0 +1,87 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Test;
+import org.openmrs.module.interop.api.model.OutboxEntry;
+
+public class DeliveryChannelTest {
+	
+	private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+	
+	@Test
+	public void shouldKeepEntriesOfOnePatientInOneSliceInOrder() {
+		OutboxEntry first = entry(1, "Patient/a");
+		OutboxEntry second = entry(2, "Patient/b");
+		OutboxEntry third = entry(3, "Patient/a");
+		OutboxEntry fourth = entry(4, "Patient/c");
+		OutboxEntry fifth = entry(5, "Patient/a");
+		
+		List<List<OutboxEntry>> slices = DeliveryChannel.slice(Arrays.asList(first, second, third, fourth, fifth), 3);
+		
+		assertThat(slices.size(), equalTo(3));
+		assertThat(slices.get(0), contains(first, third, fifth));
+		assertThat(slices.get(1), contains(second));
+		assertThat(slices.get(2), contains(fourth));
+	}
+	
+	@Test
+	public void shouldSpreadEntriesWithoutKeyEvenly() {
+		List<OutboxEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			entries.add(entry(i, null));
+		}
+		
+		List<List<OutboxEntry>> slices = DeliveryChannel.slice(entries, 2);
+		
+		assertThat(slices.size(), equalTo(2));
+		assertThat(slices.get(0).size(), equalTo(3));
+		assertThat(slices.get(1).size(), equalTo(2));
+	}
+	
+	@Test
+	public void shouldKeyResourcesByThePatientTheyReferTo() {
+		Patient patient = new Patient();
+		patient.setId("abc");
+		Observation observation = new Observation();
+		observation.setSubject(new Reference("Patient/abc"));
+		Encounter encounter = new Encounter();
+		encounter.setSubject(new Reference("Patient/abc"));
+		Bundle bundle = new Bundle();
+		bundle.addEntry().setResource(encounter);
+		
+		assertThat(DeliveryChannel.orderingKeyOf(FHIR_CONTEXT, patient), equalTo("Patient/abc"));
+		assertThat(DeliveryChannel.orderingKeyOf(FHIR_CONTEXT, observation), equalTo("Patient/abc"));
+		assertThat(DeliveryChannel.orderingKeyOf(FHIR_CONTEXT, bundle), equalTo("Patient/abc"));
+		assertThat(DeliveryChannel.orderingKeyOf(FHIR_CONTEXT, new Observation()), nullValue());
+	}
+	
+	private static OutboxEntry entry(int id, String orderingKey) {
+		OutboxEntry entry = new OutboxEntry();
+		entry.setId(id);
+		entry.setOrderingKey(orderingKey);
+		return entry;
+	}
+}
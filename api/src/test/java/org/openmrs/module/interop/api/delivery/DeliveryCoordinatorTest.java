@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DeliveryCoordinatorTest {
+	
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	
+	@After
+	public void tearDown() {
+		timer.shutdownNow();
+	}
+	
+	@Test
+	public void shouldParseTimeoutsPerPublisher() {
+		Map<String, Long> timeouts = DeliveryCoordinator.parseTimeouts(" KafkaConnector:10000, OpenhimConnector : 60000,bad");
+		assertThat(timeouts.size(), equalTo(2));
+		assertThat(timeouts.get("KafkaConnector"), equalTo(10000L));
+		assertThat(timeouts.get("OpenhimConnector"), equalTo(60000L));
+	}
+	
+	@Test
+	public void shouldFailDeliveryThatIsNotAcknowledgedInTime() {
+		CompletableFuture<String> delivery = new CompletableFuture<>();
+		CompletableFuture<String> timed = DeliveryCoordinator.withTimeout(delivery, 50, "SlowPublisher", timer);
+		assertThat(DeliveryCoordinator.await(timed), instanceOf(TimeoutException.class));
+	}
+	
+	@Test
+	public void shouldReportDeliveryThatSucceedsAfterTheTimeout() {
+		CompletableFuture<String> delivery = new CompletableFuture<>();
+		CompletableFuture<String> timed = DeliveryCoordinator.withTimeout(delivery, 50, "SlowPublisher", timer,
+		    Runnable::run);
+		Exception error = DeliveryCoordinator.await(timed);
+		assertThat(error, instanceOf(DeliveryTimeoutException.class));
+		AtomicBoolean deliveredLate = new AtomicBoolean();
+		((DeliveryTimeoutException) error).whenDeliveredLate(() -> deliveredLate.set(true));
+		assertThat(deliveredLate.get(), is(false));
+		
+		delivery.complete("ack");
+		
+		assertThat(deliveredLate.get(), is(true));
+	}
+	
+	@Test
+	public void shouldNotReportDeliveryThatFailsAfterTheTimeout() {
+		CompletableFuture<String> delivery = new CompletableFuture<>();
+		Exception error = DeliveryCoordinator
+		        .await(DeliveryCoordinator.withTimeout(delivery, 50, "SlowPublisher", timer, Runnable::run));
+		AtomicBoolean deliveredLate = new AtomicBoolean();
+		((DeliveryTimeoutException) error).whenDeliveredLate(() -> deliveredLate.set(true));
+		
+		delivery.completeExceptionally(new IllegalStateException("rejected"));
+		
+		assertThat(deliveredLate.get(), is(false));
+	}
+	
+	@Test
+	public void shouldPassOnOutcomeOfDeliveryAcknowledgedInTime() {
+		CompletableFuture<String> delivery = new CompletableFuture<>();
+		CompletableFuture<String> timed = DeliveryCoordinator.withTimeout(delivery, 10000, "FastPublisher", timer);
+		delivery.complete("ack");
+		assertThat(DeliveryCoordinator.await(timed), nullValue());
+		assertThat(timed.join(), equalTo("ack"));
+		
+		CompletableFuture<String> failed = new CompletableFuture<>();
+		CompletableFuture<String> timedFailure = DeliveryCoordinator.withTimeout(failed, 10000, "FastPublisher", timer);
+		failed.completeExceptionally(new IllegalStateException("rejected"));
+		assertThat(DeliveryCoordinator.await(timedFailure), instanceOf(IllegalStateException.class));
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class DeliveryExecutorsTest {
+	
+	private static final int TASKS = 20;
+	
+	@Test
+	public void shouldResolveToVirtualThreadsOnlyWhenSupported() {
+		ExecutionMode expected = DeliveryExecutors.isVirtualThreadsSupported() ? ExecutionMode.VIRTUAL
+		        : ExecutionMode.PLATFORM;
+		
+		assertThat(DeliveryExecutors.resolve(ExecutionMode.AUTO), is(expected));
+		assertThat(DeliveryExecutors.resolve(ExecutionMode.VIRTUAL), is(expected));
+		assertThat(DeliveryExecutors.resolve(ExecutionMode.PLATFORM), is(ExecutionMode.PLATFORM));
+	}
+	
+	@Test
+	public void shouldBlockNoMoreTasksAtOnceThanThePlatformPoolSize() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger mostRunning = new AtomicInteger();
+		Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		
+		runAll(ExecutionMode.PLATFORM, 3, () -> {
+			threads.add(Thread.currentThread());
+			mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				// stands in for a blocking send
+				Thread.sleep(20);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+		});
+		
+		assertThat(mostRunning.get(), equalTo(3));
+		assertThat(threads.size(), equalTo(3));
+		for (Thread thread : threads) {
+			assertThat(thread.getName(), startsWith("test-"));
+			assertThat(thread.isDaemon(), is(true));
+		}
+	}
+	
+	@Test
+	public void shouldNotBoundBlockedTasksToThePoolSizeOnVirtualThreads() throws Exception {
+		Assume.assumeTrue(DeliveryExecutors.isVirtualThreadsSupported());
+		CountDownLatch allStarted = new CountDownLatch(TASKS);
+		AtomicInteger released = new AtomicInteger();
+		
+		// each task waits for all of them, which a pool of one thread could never let happen
+		runAll(ExecutionMode.VIRTUAL, 1, () -> {
+			allStarted.countDown();
+			try {
+				if (allStarted.await(5, TimeUnit.SECONDS)) {
+					released.incrementAndGet();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		
+		assertThat(released.get(), equalTo(TASKS));
+	}
+	
+	private void runAll(ExecutionMode mode, int poolSize, Runnable task) throws Exception {
+		ExecutorService executor = DeliveryExecutors.newExecutor(mode, poolSize, "test-");
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < TASKS; i++) {
+				futures.add(executor.submit(task));
+			}
+			for (Future<?> future : futures) {
+				future.get(10, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.junit.Test;
+import org.openmrs.module.interop.api.Publisher;
+
+public class PublisherRegistryTest {
+	
+	private final PublisherRegistry registry = new PublisherRegistry();
+	
+	@Test
+	public void shouldKeepTheRegisteredInstancesUnderTheirClassName() {
+		TestPublisher enabled = new TestPublisher(true);
+		DisabledPublisher disabled = new DisabledPublisher();
+		registry.refresh(Arrays.asList(enabled, disabled));
+		
+		assertThat(PublisherRegistry.nameOf(enabled), equalTo(TestPublisher.class.getName()));
+		assertThat(registry.getPublisher(TestPublisher.class.getName()), sameInstance(enabled));
+		assertThat(registry.getPublisher(DisabledPublisher.class.getName()), sameInstance(disabled));
+		// looked up, not instantiated, on every publish
+		assertThat(registry.getPublishers(), contains(enabled, disabled));
+	}
+	
+	@Test
+	public void shouldListOnlyTheEnabledPublishers() {
+		TestPublisher enabled = new TestPublisher(true);
+		registry.refresh(Arrays.asList(enabled, new DisabledPublisher()));
+		
+		assertThat(registry.getEnabledPublishers(), contains(enabled));
+	}
+	
+	@Test
+	public void shouldReplaceThePublishersOnRefresh() {
+		registry.refresh(Collections.singletonList(new DisabledPublisher()));
+		TestPublisher replacement = new TestPublisher(true);
+		
+		registry.refresh(Collections.singletonList(replacement));
+		
+		assertThat(registry.getPublishers(), contains(replacement));
+		assertThat(registry.getPublisher(DisabledPublisher.class.getName()), nullValue());
+	}
+	
+	@Test
+	public void shouldCloseTheOtherPublishersWhenOneFailsToClose() {
+		TestPublisher first = new TestPublisher(true);
+		TestPublisher failing = new TestPublisher(true) {
+			
+			@Override
+			public void close() {
+				super.close();
+				throw new IllegalStateException("Unable to close");
+			}
+		};
+		DisabledPublisher last = new DisabledPublisher();
+		registry.refresh(Arrays.asList(first, failing, last));
+		
+		registry.close();
+		
+		assertThat(first.closed, is(true));
+		assertThat(failing.closed, is(true));
+		assertThat(last.closed, is(true));
+	}
+	
+	private static class TestPublisher implements Publisher {
+		
+		private final boolean enabled;
+		
+		boolean closed;
+		
+		TestPublisher(boolean enabled) {
+			this.enabled = enabled;
+		}
+		
+		@Override
+		public void publish(FhirContext context, IAnyResource resource, String serverToken) {
+		}
+		
+		@Override
+		public void publish(IAnyResource resource) {
+		}
+		
+		@Override
+		public boolean isEnabled() {
+			return enabled;
+		}
+		
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+	
+	private static class DisabledPublisher extends TestPublisher {
+		
+		DisabledPublisher() {
+			super(false);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+	
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+	
+	private final AtomicLong now = new AtomicLong();
+	
+	@Test
+	public void shouldLetBurstUpToLimitThrough() {
+		RateLimiter rateLimiter = new RateLimiter("TestPublisher", 5, 0, 10000, now::get);
+		for (int i = 0; i < 5; i++) {
+			assertThat(rateLimiter.reserve(1, 100), equalTo(0L));
+		}
+		assertThat(rateLimiter.reserve(1, 100), equalTo(SECOND / 5));
+		assertThat(rateLimiter.reserve(1, 100), equalTo(2 * SECOND / 5));
+	}
+	
+	@Test
+	public void shouldRefillOverTime() {
+		RateLimiter rateLimiter = new RateLimiter("TestPublisher", 2, 0, 10000, now::get);
+		rateLimiter.reserve(2, 0);
+		now.addAndGet(SECOND / 2);
+		assertThat(rateLimiter.reserve(1, 0), equalTo(0L));
+		assertThat(rateLimiter.reserve(1, 0), greaterThan(0L));
+	}
+	
+	@Test
+	public void shouldWaitForTheStricterLimit() {
+		RateLimiter rateLimiter = new RateLimiter("TestPublisher", 100, 1000, 10000, now::get);
+		assertThat(rateLimiter.reserve(1, 1000), equalTo(0L));
+		assertThat(rateLimiter.reserve(1, 500), equalTo(SECOND / 2));
+	}
+	
+	@Test
+	public void shouldRejectWithoutReservingWhenWaitIsTooLong() {
+		RateLimiter rateLimiter = new RateLimiter("TestPublisher", 1, 0, 1500, now::get);
+		rateLimiter.reserve(1, 0);
+		rateLimiter.reserve(1, 0);
+		assertThat(rateLimiter.reserve(1, 0), equalTo(-1L));
+		now.addAndGet(SECOND);
+		assertThat(rateLimiter.reserve(1, 0), equalTo(SECOND));
+	}
+	
+	@Test
+	public void shouldLetBatchLargerThanTheBucketThroughOnceItIsFull() {
+		RateLimiter rateLimiter = new RateLimiter("TestPublisher", 0, 1000, 1000, now::get);
+		rateLimiter.reserve(1, 500);
+		assertThat(rateLimiter.reserve(1, 5000), equalTo(SECOND / 2));
+		
+		// the overdraft is paid off by the reservations that follow
+		assertThat(rateLimiter.reserve(1, 100), equalTo(-1L));
+		now.addAndGet(SECOND * 11 / 2);
+		assertThat(rateLimiter.reserve(1, 1000), equalTo(0L));
+	}
+	
+	@Test
+	public void shouldParseRateLimitsPerPublisher() {
+		Map<String, RateLimiter> rateLimiters = DeliveryCoordinator
+		        .parseRateLimits("OpenhimConnector:10:1048576, KafkaConnector : 500,bad,Other:x", 1000);
+		assertThat(rateLimiters.size(), equalTo(2));
+		assertThat(rateLimiters.get("OpenhimConnector").getBytesPerSecond(), equalTo(1048576d));
+		assertThat(rateLimiters.get("KafkaConnector").getRequestsPerSecond(), equalTo(500d));
+		assertThat(rateLimiters.get("KafkaConnector").getBytesPerSecond(), equalTo(0d));
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.delivery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.junit.Test;
+import org.openmrs.module.interop.api.Publisher;
+
+public class RoutingTableTest {
+	
+	private final Publisher kafka = new KafkaConnector();
+	
+	private final Publisher openhim = new OpenhimConnector();
+	
+	private final List<Publisher> enabled = Arrays.asList(kafka, openhim);
+	
+	@Test
+	public void shouldParseRules() {
+		Map<String, Set<String>> rules = RoutingTable.parseRules(
+		    " Observation = KafkaConnector ; Bundle@abc=OpenhimConnector,KafkaConnector;Patient=;=x;@abc=y");
+		assertThat(rules.size(), equalTo(3));
+		assertThat(rules.get("Observation").size(), equalTo(1));
+		assertThat(rules.get("Bundle@abc").size(), equalTo(2));
+		assertThat(rules.get("Patient"), empty());
+	}
+	
+	@Test
+	public void shouldRouteEverythingEverywhereWithoutRules() {
+		assertThat(RoutingTable.route(RoutingTable.parseRules(""), "Patient", null, enabled), equalTo(enabled));
+	}
+	
+	@Test
+	public void shouldPreferEncounterTypeRule() {
+		Map<String, Set<String>> rules = RoutingTable
+		        .parseRules("Bundle=KafkaConnector;Bundle@abc=OpenhimConnector;*=");
+		assertThat(RoutingTable.route(rules, "Bundle", "abc", enabled), contains(openhim));
+		assertThat(RoutingTable.route(rules, "Bundle", "def", enabled), contains(kafka));
+		assertThat(RoutingTable.route(rules, "Bundle", null, enabled), contains(kafka));
+		assertThat(RoutingTable.route(rules, "Patient", null, enabled), empty());
+	}
+	
+	@Test
+	public void shouldOnlyRouteToEnabledPublishers() {
+		Map<String, Set<String>> rules = RoutingTable.parseRules("Observation=KafkaConnector,OpenhimConnector");
+		assertThat(RoutingTable.route(rules, "Observation", null, Arrays.asList(openhim)), contains(openhim));
+	}
+	
+	private static class KafkaConnector implements Publisher {
+		
+		@Override
+		public void publish(FhirContext context, IAnyResource resource, String serverToken) {
+		}
+		
+		@Override
+		public void publish(IAnyResource resource) {
+		}
+	}
+	
+	private static class OpenhimConnector extends KafkaConnector {
+	}
+}
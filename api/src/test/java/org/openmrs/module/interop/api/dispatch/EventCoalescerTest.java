@@ -0,0 +1,135 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class EventCoalescerTest {
+	
+	private static final long WINDOW_MS = 50;
+	
+	private final EventCoalescer coalescer = new EventCoalescer();
+	
+	private final List<String> handedOn = new CopyOnWriteArrayList<>();
+	
+	private final List<String> ran = new CopyOnWriteArrayList<>();
+	
+	@After
+	public void shutdown() {
+		coalescer.shutdown();
+	}
+	
+	@Test
+	public void shouldHandOnOnlyTheLatestEventOfAWindow() throws InterruptedException {
+		coalescer.start(WINDOW_MS, 10);
+		CountDownLatch done = new CountDownLatch(1);
+		coalescer.submit("Patient:a", handOn("first", null), run("first"));
+		coalescer.submit("Patient:a", handOn("second", null), run("second"));
+		coalescer.submit("Patient:a", handOn("third", done), run("third"));
+		
+		assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(handedOn, contains("third"));
+		assertThat(ran.isEmpty(), is(true));
+		assertThat(coalescer.getCoalescedEvents(), equalTo(2L));
+		assertThat(coalescer.getPendingEvents(), equalTo(0));
+	}
+	
+	@Test
+	public void shouldKeepTheEventsOfDifferentKeys() throws InterruptedException {
+		coalescer.start(WINDOW_MS, 10);
+		CountDownLatch done = new CountDownLatch(2);
+		coalescer.submit("Patient:a", handOn("a", done), run("a"));
+		coalescer.submit("Patient:b", handOn("b", done), run("b"));
+		
+		assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(handedOn, containsInAnyOrder("a", "b"));
+		assertThat(coalescer.getCoalescedEvents(), equalTo(0L));
+	}
+	
+	@Test
+	public void shouldRunOnTheCallerWhenTooManyKeysArePending() {
+		coalescer.start(TimeUnit.MINUTES.toMillis(1), 1);
+		coalescer.submit("Patient:a", handOn("a", null), run("a"));
+		coalescer.submit("Patient:b", handOn("b", null), run("b"));
+		
+		assertThat(ran, contains("b"));
+		assertThat(coalescer.getPendingEvents(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldRunOnTheCallerWithoutAWindow() {
+		coalescer.start(0, 10);
+		coalescer.submit("Patient:a", handOn("a", null), run("a"));
+		
+		assertThat(ran, contains("a"));
+		assertThat(coalescer.getPendingEvents(), equalTo(0));
+	}
+	
+	@Test
+	public void shouldKeepAnEventThatCouldNotBeHandedOnForAnotherWindow() throws InterruptedException {
+		coalescer.start(WINDOW_MS, 10);
+		AtomicInteger attempts = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(1);
+		coalescer.submit("Patient:a", () -> {
+			// the queue is full the first time
+			if (attempts.incrementAndGet() < 2) {
+				return false;
+			}
+			done.countDown();
+			return true;
+		}, run("a"));
+		
+		assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(attempts.get(), equalTo(2));
+		assertThat(ran.isEmpty(), is(true));
+	}
+	
+	@Test
+	public void shouldRunPendingEventsAtShutdown() {
+		coalescer.start(TimeUnit.MINUTES.toMillis(1), 10);
+		coalescer.submit("Patient:a", handOn("a", null), run("a"));
+		
+		coalescer.shutdown();
+		assertThat(ran, contains("a"));
+		assertThat(coalescer.getPendingEvents(), equalTo(0));
+		
+		coalescer.submit("Patient:b", handOn("b", null), run("b"));
+		assertThat(ran, contains("a", "b"));
+		assertThat(handedOn.isEmpty(), is(true));
+	}
+	
+	private BooleanSupplier handOn(String event, CountDownLatch done) {
+		return () -> {
+			handedOn.add(event);
+			if (done != null) {
+				done.countDown();
+			}
+			return true;
+		};
+	}
+	
+	private Runnable run(String event) {
+		return () -> ran.add(event);
+	}
+}
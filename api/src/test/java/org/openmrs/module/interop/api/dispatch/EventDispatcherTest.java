@@ -0,0 +1,253 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class EventDispatcherTest {
+	
+	private static final int[] WEIGHTS = { 4, 2, 1 };
+	
+	private final List<String> ran = new CopyOnWriteArrayList<>();
+	
+	private final CountDownLatch release = new CountDownLatch(1);
+	
+	private EventDispatcher dispatcher;
+	
+	@After
+	public void shutdown() {
+		release.countDown();
+		if (dispatcher != null) {
+			dispatcher.shutdown(0);
+		}
+	}
+	
+	@Test
+	public void shouldRunTheTasksOfOneKeyInSubmissionOrder() throws InterruptedException {
+		dispatcher = start(4, 1000, RejectionPolicy.BLOCK, null);
+		Map<String, List<Integer>> runOrder = new ConcurrentHashMap<>();
+		CountDownLatch done = new CountDownLatch(200);
+		for (int i = 0; i < 200; i++) {
+			String patient = "patient-" + (i % 5);
+			int event = i;
+			dispatcher.execute(patient, () -> {
+				runOrder.computeIfAbsent(patient, key -> Collections.synchronizedList(new ArrayList<>())).add(event);
+				done.countDown();
+			});
+		}
+		
+		assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+		for (List<Integer> events : runOrder.values()) {
+			List<Integer> sorted = new ArrayList<>(events);
+			Collections.sort(sorted);
+			assertThat(events, equalTo(sorted));
+			assertThat(events.size(), equalTo(40));
+		}
+	}
+	
+	@Test
+	public void shouldNotHoldUpABulkheadBehindTheSharedPool() throws InterruptedException {
+		dispatcher = start(1, 10, RejectionPolicy.BLOCK, "Encounter:1:10");
+		CountDownLatch started = new CountDownLatch(1);
+		dispatcher.execute(null, "patient", EventPriority.NORMAL, blocker(started));
+		assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+		
+		CountDownLatch done = new CountDownLatch(1);
+		dispatcher.execute("Encounter", "patient", EventPriority.NORMAL, done::countDown);
+		
+		assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(dispatcher.getQueueDepth("Encounter"), equalTo(0));
+	}
+	
+	@Test
+	public void shouldDropTheTaskWhenFullWithDiscard() throws InterruptedException {
+		dispatcher = start(1, 1, RejectionPolicy.DISCARD, null);
+		fillLane();
+		
+		dispatcher.execute("patient", record("rejected"));
+		
+		assertThat(dispatcher.getRejectedEvents(), equalTo(1L));
+		assertThat(dispatcher.getQueueDepth(), equalTo(1));
+		release.countDown();
+		awaitIdle();
+		assertThat(ran, contains("queued"));
+	}
+	
+	@Test
+	public void shouldRunTheTaskOnTheCallerWhenFullWithCallerRuns() throws InterruptedException {
+		dispatcher = start(1, 1, RejectionPolicy.CALLER_RUNS, null);
+		fillLane();
+		
+		dispatcher.execute("patient", record("rejected"));
+		
+		// ran before the queued task, whose worker is still busy
+		assertThat(ran, contains("rejected"));
+		assertThat(dispatcher.getRejectedEvents(), equalTo(1L));
+	}
+	
+	@Test
+	public void shouldWaitForRoomWhenFullWithBlock() throws InterruptedException {
+		dispatcher = start(1, 1, RejectionPolicy.BLOCK, null);
+		fillLane();
+		
+		Thread caller = new Thread(() -> dispatcher.execute("patient", record("waited")));
+		caller.start();
+		caller.join(200);
+		assertThat(caller.isAlive(), is(true));
+		
+		release.countDown();
+		caller.join(5000);
+		awaitIdle();
+		assertThat(ran, contains("queued", "waited"));
+		assertThat(dispatcher.getRejectedEvents(), equalTo(0L));
+	}
+	
+	@Test
+	public void shouldNotWaitForRoomOnOffer() throws InterruptedException {
+		dispatcher = start(1, 1, RejectionPolicy.BLOCK, null);
+		fillLane();
+		
+		assertThat(dispatcher.offer(null, "patient", EventPriority.NORMAL, record("offered")), is(false));
+		assertThat(dispatcher.getRejectedEvents(), equalTo(0L));
+	}
+	
+	@Test
+	public void shouldRunQueuedTasksBeforeTheShutdownTimeout() throws InterruptedException {
+		dispatcher = start(1, 10, RejectionPolicy.BLOCK, null);
+		for (int i = 0; i < 5; i++) {
+			dispatcher.execute("patient", record("task-" + i));
+		}
+		
+		assertThat(dispatcher.shutdown(5000).isEmpty(), is(true));
+		assertThat(ran, contains("task-0", "task-1", "task-2", "task-3", "task-4"));
+	}
+	
+	@Test
+	public void shouldReturnTheTasksLeftAtTheShutdownTimeout() throws InterruptedException {
+		dispatcher = start(1, 10, RejectionPolicy.BLOCK, null);
+		CountDownLatch started = new CountDownLatch(1);
+		dispatcher.execute("patient", blocker(started));
+		assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+		Runnable first = record("first");
+		Runnable second = record("second");
+		dispatcher.execute("patient", first);
+		dispatcher.execute("patient", second);
+		
+		AtomicReference<List<Runnable>> unfinished = new AtomicReference<>();
+		Thread stopping = new Thread(() -> unfinished.set(dispatcher.shutdown(100)));
+		stopping.start();
+		while (dispatcher.isRunning()) {
+			Thread.sleep(10);
+		}
+		// submitted while draining, kept with the tasks left over
+		Runnable late = record("late");
+		dispatcher.execute("patient", late);
+		stopping.join(5000);
+		
+		assertThat(unfinished.get(), contains(first, second, late));
+		assertThat(ran.isEmpty(), is(true));
+	}
+	
+	@Test
+	public void shouldRunTasksInTheirOwnThreadWhenNotStarted() throws InterruptedException {
+		dispatcher = new TestEventDispatcher();
+		CountDownLatch done = new CountDownLatch(1);
+		
+		dispatcher.execute("patient", done::countDown);
+		
+		assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+	}
+	
+	private EventDispatcher start(int threads, int queueSize, RejectionPolicy rejectionPolicy, String bulkheads) {
+		EventDispatcher started = new TestEventDispatcher();
+		started.start(null, threads, queueSize, rejectionPolicy, new EventPriorityRules(EventPriority.NORMAL), WEIGHTS,
+		    bulkheads);
+		return started;
+	}
+	
+	/**
+	 * Occupies the only worker until {@link #release} and fills its lane with one queued task
+	 */
+	private void fillLane() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		dispatcher.execute("patient", blocker(started));
+		assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+		dispatcher.execute("patient", record("queued"));
+	}
+	
+	private void awaitIdle() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (dispatcher.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// the last task may still be running
+		Thread.sleep(50);
+	}
+	
+	private Runnable blocker(CountDownLatch started) {
+		return () -> {
+			started.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+	}
+	
+	private Runnable record(String task) {
+		return () -> ran.add(task);
+	}
+	
+	/**
+	 * Runs the workers on plain daemon threads, there is no module daemon token or session here
+	 */
+	private static class TestEventDispatcher extends EventDispatcher {
+		
+		@Override
+		Thread runInDaemonThread(Runnable task) {
+			Thread thread = new Thread(task);
+			thread.setDaemon(true);
+			thread.start();
+			return thread;
+		}
+		
+		@Override
+		void runInDaemonThreadAndWait(Runnable task) {
+			try {
+				runInDaemonThread(task).join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		@Override
+		void clearSession() {
+		}
+	}
+}
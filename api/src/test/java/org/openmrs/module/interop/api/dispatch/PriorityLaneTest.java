@@ -0,0 +1,115 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.dispatch;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.openmrs.event.Event;
+
+public class PriorityLaneTest {
+	
+	private static final int[] WEIGHTS = { 4, 2, 1 };
+	
+	@Test
+	public void shouldServeHigherPriorityFirst() throws InterruptedException {
+		PriorityLane lane = new PriorityLane(10, WEIGHTS);
+		Runnable low = () -> {};
+		Runnable high = () -> {};
+		lane.offer(low, null, EventPriority.LOW);
+		lane.offer(high, null, EventPriority.HIGH);
+		
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(high));
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(low));
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), nullValue());
+	}
+	
+	@Test
+	public void shouldGiveEveryPriorityItsShare() throws InterruptedException {
+		PriorityLane lane = new PriorityLane(100, WEIGHTS);
+		int[] served = new int[3];
+		for (EventPriority priority : EventPriority.values()) {
+			for (int i = 0; i < 20; i++) {
+				lane.offer(() -> served[priority.ordinal()]++, null, priority);
+			}
+		}
+		
+		for (int i = 0; i < 7; i++) {
+			lane.poll(0, TimeUnit.MILLISECONDS).run();
+		}
+		assertThat(served[0], equalTo(4));
+		assertThat(served[1], equalTo(2));
+		assertThat(served[2], equalTo(1));
+	}
+	
+	@Test
+	public void shouldNotLetHigherPriorityOvertakeTasksOfTheSameKey() throws InterruptedException {
+		PriorityLane lane = new PriorityLane(10, WEIGHTS);
+		Runnable normalA = () -> {};
+		Runnable highB = () -> {};
+		Runnable highA = () -> {};
+		lane.offer(normalA, "a", EventPriority.NORMAL);
+		lane.offer(highB, "b", EventPriority.HIGH);
+		lane.offer(highA, "a", EventPriority.HIGH);
+		
+		// the queued task of a is raised along with the new one
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(highB));
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(normalA));
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(highA));
+	}
+	
+	@Test
+	public void shouldQueueTaskAtTheHighestPriorityQueuedForItsKey() throws InterruptedException {
+		PriorityLane lane = new PriorityLane(10, WEIGHTS);
+		Runnable highA = () -> {};
+		Runnable lowA = () -> {};
+		Runnable normalB = () -> {};
+		lane.offer(highA, "a", EventPriority.HIGH);
+		lane.offer(lowA, "a", EventPriority.LOW);
+		lane.offer(normalB, "b", EventPriority.NORMAL);
+		
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(highA));
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(lowA));
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(normalB));
+		
+		// nothing of a is queued anymore, so its next task keeps its own priority
+		Runnable lowA2 = () -> {};
+		Runnable normalC = () -> {};
+		lane.offer(lowA2, "a", EventPriority.LOW);
+		lane.offer(normalC, "c", EventPriority.NORMAL);
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(normalC));
+		assertThat(lane.poll(0, TimeUnit.MILLISECONDS), is(lowA2));
+	}
+	
+	@Test
+	public void shouldRejectWhenFull() {
+		PriorityLane lane = new PriorityLane(1, WEIGHTS);
+		assertThat(lane.offer(() -> {}, null, EventPriority.LOW), is(true));
+		assertThat(lane.offer(() -> {}, null, EventPriority.HIGH), is(false));
+		assertThat(lane.size(), equalTo(1));
+	}
+	
+	@Test
+	public void shouldResolvePriorityRules() {
+		EventPriorityRules rules = EventPriorityRules.parse("Patient=HIGH, Obs=low,Obs:VOIDED=HIGH,bad,Foo=URGENT",
+		    EventPriority.NORMAL);
+		
+		assertThat(rules.resolve("org.openmrs.Patient", Event.Action.CREATED), is(EventPriority.HIGH));
+		assertThat(rules.resolve("org.openmrs.Obs", Event.Action.CREATED), is(EventPriority.LOW));
+		assertThat(rules.resolve("org.openmrs.Obs", Event.Action.VOIDED), is(EventPriority.HIGH));
+		assertThat(rules.resolve("org.openmrs.Encounter", Event.Action.UPDATED), is(EventPriority.NORMAL));
+		assertThat(rules.resolve("org.openmrs.Foo", Event.Action.UPDATED), is(EventPriority.NORMAL));
+	}
+}
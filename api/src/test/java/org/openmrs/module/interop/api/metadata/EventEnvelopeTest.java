@@ -0,0 +1,68 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.api.metadata;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.Test;
+import org.openmrs.event.Event;
+
+public class EventEnvelopeTest {
+	
+	private static final String UUID = "3f8a4c2e-1b2d-4e5f-8a9b-0c1d2e3f4a5b";
+	
+	@Test
+	public void shouldParseClassActionAndUuid() {
+		EventEnvelope envelope = EventEnvelope.parse(UUID, "topic://UPDATED:org.openmrs.Patient", 42L);
+		
+		assertThat(envelope.getEntityClass(), equalTo("org.openmrs.Patient"));
+		assertThat(envelope.getAction(), is(Event.Action.UPDATED));
+		assertThat(envelope.getUuid(), equalTo(UUID));
+		assertThat(envelope.getReceivedAt(), equalTo(42L));
+	}
+	
+	@Test
+	public void shouldNotMatchActionByPrefix() {
+		assertThat(EventEnvelope.parse(UUID, "topic://VOID:org.openmrs.Patient", 0L), nullValue());
+		assertThat(EventEnvelope.parse(UUID, "topic://VOIDEDX:org.openmrs.Patient", 0L), nullValue());
+	}
+	
+	@Test
+	public void shouldRejectMalformedDestinations() {
+		assertThat(EventEnvelope.parse(UUID, "queue://UPDATED:org.openmrs.Patient", 0L), nullValue());
+		assertThat(EventEnvelope.parse(UUID, "topic://UPDATED", 0L), nullValue());
+		assertThat(EventEnvelope.parse(UUID, "topic://UPDATED:", 0L), nullValue());
+		assertThat(EventEnvelope.parse(null, "topic://UPDATED:org.openmrs.Patient", 0L), nullValue());
+		assertThat(EventEnvelope.parse(UUID, null, 0L), nullValue());
+	}
+	
+	@Test
+	public void shouldParseEveryActionLikeTheDestinationSplit() {
+		for (Event.Action action : Event.Action.values()) {
+			String destination = "topic://" + action + ":org.openmrs.Encounter";
+			
+			EventEnvelope envelope = EventEnvelope.parse(UUID, destination, 0L);
+			
+			// what the observers read from the destination before the envelope scanned it in place
+			String[] split = destination.split(":(?://)?");
+			assertThat(envelope.getAction(), is(Event.Action.valueOf(split[1])));
+			assertThat(envelope.getEntityClass(), equalTo(split[2]));
+		}
+	}
+	
+	@Test
+	public void shouldParseActionOnly() {
+		assertThat(EventEnvelope.parseAction("topic://RETIRED:org.openmrs.Concept").get(), is(Event.Action.RETIRED));
+		assertThat(EventEnvelope.parseAction("topic://UNKNOWN:org.openmrs.Concept").isPresent(), is(false));
+	}
+}
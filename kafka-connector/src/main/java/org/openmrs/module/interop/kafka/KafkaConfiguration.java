@@ -11,45 +11,236 @@ package org.openmrs.module.interop.kafka;
 
 import static org.openmrs.module.interop.kafka.KafkaConnectorConstants.GP_KAFKA_CLIENT_ID;
 import static org.openmrs.module.interop.kafka.KafkaConnectorConstants.GP_KAFKA_KEY_SERIALIZERS;
+import static org.openmrs.module.interop.kafka.KafkaConnectorConstants.GP_KAFKA_PREFIX;
 import static org.openmrs.module.interop.kafka.KafkaConnectorConstants.GP_KAFKA_SERVER_URL;
 import static org.openmrs.module.interop.kafka.KafkaConnectorConstants.GP_KAFKA_VALUE_SERIALIZERS;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.time.Duration;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.utils.GlobalPropertySnapshot;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+/**
+ * Holds whether Kafka is enabled and the producer properties in memory. They are read from the
+ * global properties on first use and updated with the new value when one of them changes, so
+ * publishing doesn't query the database. It also owns the producer shared by all deliveries, created
+ * on first use and replaced when the properties change so the next delivery gets a producer with the
+ * new settings. The replaced producer is closed in the background, the change doesn't wait for it
+ * and messages it is still sending go out.
+ */
+@Slf4j
 @Component("iterop.kafkaConfiguration")
-public class KafkaConfiguration {
+public class KafkaConfiguration implements GlobalPropertyListener {
 	
 	@Autowired
 	@Qualifier("adminService")
 	private AdministrationService administrationService;
 	
+	private static final Duration PRODUCER_CLOSE_TIMEOUT = Duration.ofSeconds(5);
+	
+	/**
+	 * How long a replaced producer stays open for deliveries that picked it up just before
+	 */
+	private static final long RETIRED_PRODUCER_CLOSE_DELAY_MS = 10000;
+	
+	private final Set<Producer<String, String>> retiredProducers = ConcurrentHashMap.newKeySet();
+	
+	private final ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "interop-kafka-producer-closer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private volatile Snapshot snapshot;
+	
+	private volatile Producer<String, String> producer;
+	
+	@PostConstruct
+	public void register() {
+		administrationService.addGlobalPropertyListener(this);
+	}
+	
+	@PreDestroy
+	public void unregister() {
+		administrationService.removeGlobalPropertyListener(this);
+		closeProducer();
+		closer.shutdownNow();
+		for (Producer<String, String> retired : retiredProducers) {
+			closeRetiredProducer(retired, PRODUCER_CLOSE_TIMEOUT);
+		}
+	}
+	
+	public boolean isEnabled() {
+		return getSnapshot().enabled;
+	}
+	
+	/**
+	 * @return a copy of the producer properties, callers may change it
+	 */
 	public Properties getProperties() {
 		Properties properties = new Properties();
-		properties.put("bootstrap.servers", getKafkaServerUrl());
-		properties.put("client.id", getClientId());
-		properties.put("key.serializer", getKeySerializer());
-		properties.put("value.serializer", getValueSerializer());
+		properties.putAll(getSnapshot().properties);
 		return properties;
 	}
 	
-	private String getKafkaServerUrl() {
-		return administrationService.getGlobalProperty(GP_KAFKA_SERVER_URL);
+	/**
+	 * @return the producer for the current properties, it is thread safe and shared by all deliveries
+	 */
+	public Producer<String, String> getProducer() {
+		Producer<String, String> current = producer;
+		if (current == null) {
+			synchronized (this) {
+				current = producer;
+				if (current == null) {
+					current = new KafkaProducer<>(getProperties());
+					producer = current;
+					log.info("Created the Kafka producer for {}", getSnapshot().properties.get("bootstrap.servers"));
+				}
+			}
+		}
+		return current;
+	}
+	
+	/**
+	 * Closes the shared producer after waiting a moment for messages it is still sending, the next
+	 * {@link #getProducer()} creates a new one
+	 */
+	public void closeProducer() {
+		Producer<String, String> current;
+		synchronized (this) {
+			current = producer;
+			producer = null;
+		}
+		if (current != null) {
+			current.close(PRODUCER_CLOSE_TIMEOUT);
+			log.info("Closed the Kafka producer");
+		}
+	}
+	
+	/**
+	 * Swaps out the shared producer without waiting for it to close, the next {@link #getProducer()}
+	 * creates a new one. The old one is closed on a background thread once deliveries that picked it
+	 * up have had time to send, closing waits for the messages it is still sending.
+	 */
+	private void retireProducer() {
+		Producer<String, String> current;
+		synchronized (this) {
+			current = producer;
+			producer = null;
+		}
+		if (current == null) {
+			return;
+		}
+		retiredProducers.add(current);
+		try {
+			closer.schedule(() -> closeRetiredProducer(current, Duration.ofMillis(Long.MAX_VALUE)),
+			    RETIRED_PRODUCER_CLOSE_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			// unregistered meanwhile
+			closeRetiredProducer(current, PRODUCER_CLOSE_TIMEOUT);
+		}
+	}
+	
+	private void closeRetiredProducer(Producer<String, String> retired, Duration timeout) {
+		if (retiredProducers.remove(retired)) {
+			retired.close(timeout);
+			log.info("Closed the replaced Kafka producer");
+		}
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return InteropConstant.GP_ENABLE_KAFKA.equals(propertyName)
+		        || propertyName != null && propertyName.startsWith(GP_KAFKA_PREFIX);
+	}
+	
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		update(newValue.getProperty(), newValue.getPropertyValue());
+		retireProducer();
+	}
+	
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		update(propertyName, null);
+		retireProducer();
+	}
+	
+	/**
+	 * The change isn't committed yet, so the new value is applied to the snapshot rather than read
+	 */
+	private synchronized void update(String propertyName, String value) {
+		Snapshot current = snapshot;
+		snapshot = new Snapshot(
+		        (current != null ? current.globalProperties : loadGlobalProperties()).with(propertyName, value));
 	}
 	
-	private String getClientId() {
-		return administrationService.getGlobalProperty(GP_KAFKA_CLIENT_ID);
+	private Snapshot getSnapshot() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			Snapshot loaded = new Snapshot(loadGlobalProperties());
+			synchronized (this) {
+				// a change that came in meanwhile wins over what was read
+				if (snapshot == null) {
+					snapshot = loaded;
+				}
+				current = snapshot;
+			}
+		}
+		return current;
 	}
 	
-	private String getKeySerializer() {
-		return administrationService.getGlobalProperty(GP_KAFKA_KEY_SERIALIZERS);
+	private GlobalPropertySnapshot loadGlobalProperties() {
+		return GlobalPropertySnapshot.load(administrationService, GP_KAFKA_PREFIX, InteropConstant.GP_ENABLE_KAFKA);
 	}
 	
-	private String getValueSerializer() {
-		return administrationService.getGlobalProperty(GP_KAFKA_VALUE_SERIALIZERS);
+	private static final class Snapshot {
+		
+		private final GlobalPropertySnapshot globalProperties;
+		
+		private final boolean enabled;
+		
+		private final Properties properties;
+		
+		private Snapshot(GlobalPropertySnapshot globalProperties) {
+			this.globalProperties = globalProperties;
+			this.enabled = Boolean.parseBoolean(globalProperties.get(InteropConstant.GP_ENABLE_KAFKA, "false"));
+			this.properties = new Properties();
+			putIfSet("bootstrap.servers", GP_KAFKA_SERVER_URL);
+			putIfSet("client.id", GP_KAFKA_CLIENT_ID);
+			putIfSet("key.serializer", GP_KAFKA_KEY_SERIALIZERS);
+			putIfSet("value.serializer", GP_KAFKA_VALUE_SERIALIZERS);
+			log.debug("Kafka enabled {} with servers {}", enabled, properties.get("bootstrap.servers"));
+		}
+		
+		/**
+		 * Properties doesn't take null values, an unset property is left for the producer to report
+		 */
+		private void putIfSet(String key, String globalProperty) {
+			String value = globalProperties.get(globalProperty);
+			if (value != null) {
+				properties.put(key, value);
+			}
+		}
 	}
 }
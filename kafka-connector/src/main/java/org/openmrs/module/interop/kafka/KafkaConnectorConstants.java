@@ -11,6 +11,8 @@ package org.openmrs.module.interop.kafka;
 
 public class KafkaConnectorConstants {
 	
+	public static final String GP_KAFKA_PREFIX = "interop.kafka";
+	
 	public static final String GP_KAFKA_SERVER_URL = "interop.kafkaServerURL";
 	
 	public static final String GP_KAFKA_CLIENT_ID = "interop.kafkaClientId";
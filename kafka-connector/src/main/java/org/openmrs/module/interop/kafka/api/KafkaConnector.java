@@ -14,23 +14,42 @@ import javax.validation.constraints.NotNull;
 import ca.uhn.fhir.context.FhirContext;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.ListTopicsOptions;
 import org.apache.kafka.clients.admin.ListTopicsResult;
+import org.apache.kafka.clients.producer.ProducerRecord;
 import org.hl7.fhir.instance.model.api.IAnyResource;
-import org.openmrs.api.context.Context;
-import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.api.DeliveryReceipt;
+import org.openmrs.module.interop.api.EncodedPayload;
 import org.openmrs.module.interop.api.Publisher;
+import org.openmrs.module.interop.api.delivery.PublisherRegistry;
 import org.openmrs.module.interop.kafka.KafkaConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Component
 public class KafkaConnector implements Publisher {
 	
+	private static final int VERIFY_TIMEOUT_MS = 10000;
+	
+	@Autowired
+	private KafkaConfiguration config;
+	
 	@Override
 	public void publish(@NotNull FhirContext context, @NotNull IAnyResource resource, String serverToken) {
-		log.error("publish resource with ID {}", resource.getId());
+		log.debug("publish resource with ID {}", resource.getId());
 		String encodeResourceString = context.newJsonParser().encodeResourceToString(resource);
 		if (encodeResourceString == null || encodeResourceString.isEmpty()) {
 			encodeResourceString = resource.getId();
@@ -39,6 +58,42 @@ public class KafkaConnector implements Publisher {
 		KafkaProducer.produce(resource.fhirType(), UUID.randomUUID().toString(), encodeResourceString);
 	}
 	
+	@Override
+	public void publish(@NotNull FhirContext context, @NotNull EncodedPayload payload, String serverToken) {
+		log.debug("publish {}", payload);
+		KafkaProducer.produce(payload.getResourceType(), UUID.randomUUID().toString(), payload.getText());
+	}
+	
+	@Override
+	public void publishBatch(@NotNull FhirContext context, @NotNull List<EncodedPayload> payloads, String serverToken) {
+		log.debug("publish {} resources", payloads.size());
+		List<ProducerRecord<String, String>> records = new ArrayList<>(payloads.size());
+		for (EncodedPayload payload : payloads) {
+			records.add(new ProducerRecord<>(payload.getResourceType(), UUID.randomUUID().toString(), payload.getText()));
+		}
+		KafkaProducer.produceBatch(records);
+	}
+	
+	/**
+	 * Hands the message to the producer on the executor and completes from the send callback, so no
+	 * thread waits for the broker to acknowledge
+	 */
+	@Override
+	public CompletableFuture<DeliveryReceipt> publishAsync(@NotNull FhirContext context, @NotNull EncodedPayload payload,
+	        String serverToken, @NotNull Executor executor) {
+		long startedAt = System.currentTimeMillis();
+		return CompletableFuture
+		        .supplyAsync(() -> KafkaProducer.produceAsync(payload.getResourceType(), UUID.randomUUID().toString(),
+		            payload.getText()), executor)
+		        .thenCompose(send -> send).thenApply(metadata -> {
+			        Map<String, Object> details = new LinkedHashMap<>();
+			        details.put("topic", metadata.topic());
+			        details.put("partition", metadata.partition());
+			        details.put("offset", metadata.offset());
+			        return new DeliveryReceipt(PublisherRegistry.nameOf(this), payload, startedAt, details);
+		        });
+	}
+	
 	@Override
 	public void publish(IAnyResource resource) {
 		
@@ -46,21 +101,31 @@ public class KafkaConnector implements Publisher {
 	
 	@Override
 	public boolean isEnabled() {
-		return Boolean.parseBoolean(
-		    Context.getAdministrationService().getGlobalProperty(InteropConstant.GP_ENABLE_KAFKA, "false"));
+		return config.isEnabled();
+	}
+	
+	@Override
+	public void close() {
+		config.closeProducer();
 	}
 	
 	@Override
 	public boolean verifyConnection() {
-		KafkaConfiguration config = Context.getRegisteredComponent("iterop.kafkaConfiguration", KafkaConfiguration.class);
-		try (AdminClient adminClient = AdminClient.create(config.getProperties())) {
-			ListTopicsResult topics = adminClient.listTopics();
-			topics.names().get();
+		Properties properties = config.getProperties();
+		properties.put(AdminClientConfig.DEFAULT_API_TIMEOUT_MS_CONFIG, VERIFY_TIMEOUT_MS);
+		properties.put(AdminClientConfig.REQUEST_TIMEOUT_MS_CONFIG, VERIFY_TIMEOUT_MS);
+		AdminClient adminClient = AdminClient.create(properties);
+		try {
+			ListTopicsResult topics = adminClient.listTopics(new ListTopicsOptions().timeoutMs(VERIFY_TIMEOUT_MS));
+			topics.names().get(VERIFY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
 			return true;
 		}
 		catch (Exception exc) {
 			log.error("Unable to verified connection properties", exc);
 			return false;
 		}
+		finally {
+			adminClient.close(Duration.ZERO);
+		}
 	}
 }
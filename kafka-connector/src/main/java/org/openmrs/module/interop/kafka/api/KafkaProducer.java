@@ -9,7 +9,14 @@
  */
 package org.openmrs.module.interop.kafka.api;
 
-import groovy.util.logging.Slf4j;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import org.openmrs.api.context.Context;
@@ -19,16 +26,93 @@ import org.openmrs.module.interop.kafka.KafkaConfiguration;
 public class KafkaProducer {
 	
 	public static void produce(String topic, String key, String value) {
+		try {
+			produceAsync(topic, key, value).get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while sending message " + key + " to topic " + topic, e);
+		}
+		catch (ExecutionException e) {
+			throw (RuntimeException) e.getCause();
+		}
+	}
+	
+	/**
+	 * Sends several messages without waiting for each acknowledgement, the producer batches and
+	 * pipelines them, and returns once the broker has acknowledged or rejected all of them
+	 *
+	 * @param records the messages
+	 * @throws RuntimeException if any message wasn't sent
+	 */
+	public static void produceBatch(List<ProducerRecord<String, String>> records) {
+		long startTime = System.currentTimeMillis();
+		Producer<String, String> producer = getProducer();
+		List<Future<RecordMetadata>> sends = new ArrayList<>(records.size());
+		int failures = 0;
+		Throwable firstFailure = null;
+		for (ProducerRecord<String, String> record : records) {
+			try {
+				sends.add(producer.send(record));
+			}
+			catch (Exception e) {
+				failures++;
+				firstFailure = firstFailure == null ? e : firstFailure;
+			}
+		}
+		for (Future<RecordMetadata> send : sends) {
+			try {
+				send.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while sending " + records.size() + " messages", e);
+			}
+			catch (ExecutionException e) {
+				failures++;
+				firstFailure = firstFailure == null ? e.getCause() : firstFailure;
+			}
+		}
+		if (firstFailure != null) {
+			throw new RuntimeException(failures + " of " + records.size() + " messages weren't sent", firstFailure);
+		}
+		log.debug("{} messages sent in {} ms", records.size(), System.currentTimeMillis() - startTime);
+	}
+	
+	/**
+	 * Sends a message without waiting for the broker, the returned future is completed from the send
+	 * callback once the broker acknowledges the message or the send fails
+	 *
+	 * @param topic the topic
+	 * @param key the message key
+	 * @param value the message
+	 * @return the metadata of the acknowledged message
+	 */
+	public static CompletableFuture<RecordMetadata> produceAsync(String topic, String key, String value) {
 		long startTime = System.currentTimeMillis();
-		KafkaConfiguration config = Context.getRegisteredComponent("iterop.kafkaConfiguration", KafkaConfiguration.class);
-		try (org.apache.kafka.clients.producer.KafkaProducer<String, String> producer = new org.apache.kafka.clients.producer.KafkaProducer<>(
-		        config.getProperties())) {
-			RecordMetadata metadata = producer.send(new ProducerRecord<>(topic, key, value)).get();
-			System.out.println("Message with id: '" + key + "' sent to partition(" + metadata.partition() + "), offset("
-			        + metadata.offset() + ") in " + (System.currentTimeMillis() - startTime) + " ms");
+		CompletableFuture<RecordMetadata> result = new CompletableFuture<>();
+		try {
+			getProducer().send(new ProducerRecord<>(topic, key, value), (metadata, exception) -> {
+				if (exception != null) {
+					result.completeExceptionally(
+					    new RuntimeException("Unable to send message " + key + " to topic " + topic, exception));
+				} else {
+					log.debug("Message with id: '{}' sent to partition({}), offset({}) in {} ms", key,
+					    metadata.partition(), metadata.offset(), System.currentTimeMillis() - startTime);
+					result.complete(metadata);
+				}
+			});
 		}
 		catch (Exception e) {
-			// error handling code
+			result.completeExceptionally(new RuntimeException("Unable to send message " + key + " to topic " + topic, e));
 		}
+		return result;
+	}
+	
+	/**
+	 * @return the producer shared by all deliveries, see {@link KafkaConfiguration#getProducer()}
+	 */
+	private static Producer<String, String> getProducer() {
+		return Context.getRegisteredComponent("iterop.kafkaConfiguration", KafkaConfiguration.class).getProducer();
 	}
 }
@@ -9,35 +9,160 @@
  */
 package org.openmrs.module.interop.openhim;
 
+import static org.openmrs.module.interop.openhim.OpenhimConstants.DEFAULT_CONNECT_TIMEOUT_MS;
+import static org.openmrs.module.interop.openhim.OpenhimConstants.DEFAULT_MAX_BATCH_SIZE;
+import static org.openmrs.module.interop.openhim.OpenhimConstants.DEFAULT_SOCKET_TIMEOUT_MS;
 import static org.openmrs.module.interop.openhim.OpenhimConstants.GP_OPENHIM_BASE_URL;
+import static org.openmrs.module.interop.openhim.OpenhimConstants.GP_OPENHIM_CONNECT_TIMEOUT_MS;
+import static org.openmrs.module.interop.openhim.OpenhimConstants.GP_OPENHIM_MAX_BATCH_SIZE;
+import static org.openmrs.module.interop.openhim.OpenhimConstants.GP_OPENHIM_PREFIX;
+import static org.openmrs.module.interop.openhim.OpenhimConstants.GP_OPENHIM_SOCKET_TIMEOUT_MS;
 import static org.openmrs.module.interop.openhim.OpenhimConstants.GP_OPENHIM_SUFFIX;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.interop.InteropConstant;
+import org.openmrs.module.interop.utils.GlobalPropertySnapshot;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+/**
+ * Holds whether OpenHIM is enabled and where to post in memory. The global properties are read on
+ * first use and updated with the new value when one of them changes, so publishing doesn't query
+ * the database.
+ */
+@Slf4j
 @Component("interop.openhimConfiguration")
-public class OpenhimConfiguration {
+public class OpenhimConfiguration implements GlobalPropertyListener {
 	
 	@Autowired
 	@Qualifier("adminService")
 	private AdministrationService administrationService;
 	
+	private volatile Snapshot snapshot;
+	
+	@PostConstruct
+	public void register() {
+		administrationService.addGlobalPropertyListener(this);
+	}
+	
+	@PreDestroy
+	public void unregister() {
+		administrationService.removeGlobalPropertyListener(this);
+	}
+	
+	public boolean isEnabled() {
+		return getSnapshot().enabled;
+	}
+	
 	public String getOpenhimServerUrl() {
-		String baseUrl = getOpenhimBaseUrl();
-		String suffixUrl = getOpenhimSuffixUrl();
-		if (baseUrl == null || suffixUrl == null) {
+		Snapshot current = getSnapshot();
+		if (current.baseUrl == null || current.suffixUrl == null) {
 			throw new IllegalArgumentException("OpenHIM URL is invalid: baseUrl or suffixUrl is null");
 		}
-		return baseUrl + suffixUrl;
+		return current.baseUrl + current.suffixUrl;
+	}
+	
+	/**
+	 * @return the maximum number of resources posted in one transaction bundle
+	 */
+	public int getMaxBatchSize() {
+		return getSnapshot().maxBatchSize;
+	}
+	
+	/**
+	 * @return how long to wait for a connection to OpenHIM in milliseconds
+	 */
+	public int getConnectTimeoutMs() {
+		return getSnapshot().connectTimeoutMs;
+	}
+	
+	/**
+	 * @return how long to wait for OpenHIM to answer a post in milliseconds
+	 */
+	public int getSocketTimeoutMs() {
+		return getSnapshot().socketTimeoutMs;
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return InteropConstant.GP_ENABLE_OPENHIM.equals(propertyName)
+		        || propertyName != null && propertyName.startsWith(GP_OPENHIM_PREFIX);
+	}
+	
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		update(newValue.getProperty(), newValue.getPropertyValue());
+	}
+	
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		update(propertyName, null);
+	}
+	
+	/**
+	 * The change isn't committed yet, so the new value is applied to the snapshot rather than read
+	 */
+	private synchronized void update(String propertyName, String value) {
+		Snapshot current = snapshot;
+		snapshot = new Snapshot(
+		        (current != null ? current.globalProperties : loadGlobalProperties()).with(propertyName, value));
+	}
+	
+	private Snapshot getSnapshot() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			Snapshot loaded = new Snapshot(loadGlobalProperties());
+			synchronized (this) {
+				// a change that came in meanwhile wins over what was read
+				if (snapshot == null) {
+					snapshot = loaded;
+				}
+				current = snapshot;
+			}
+		}
+		return current;
 	}
 	
-	private String getOpenhimBaseUrl() {
-		return administrationService.getGlobalProperty(GP_OPENHIM_BASE_URL);
+	private GlobalPropertySnapshot loadGlobalProperties() {
+		return GlobalPropertySnapshot.load(administrationService, GP_OPENHIM_PREFIX, InteropConstant.GP_ENABLE_OPENHIM);
 	}
 	
-	private String getOpenhimSuffixUrl() {
-		return administrationService.getGlobalProperty(GP_OPENHIM_SUFFIX);
+	private static final class Snapshot {
+		
+		private final GlobalPropertySnapshot globalProperties;
+		
+		private final boolean enabled;
+		
+		private final String baseUrl;
+		
+		private final String suffixUrl;
+		
+		private final int maxBatchSize;
+		
+		private final int connectTimeoutMs;
+		
+		private final int socketTimeoutMs;
+		
+		private Snapshot(GlobalPropertySnapshot globalProperties) {
+			this.globalProperties = globalProperties;
+			this.enabled = Boolean.parseBoolean(globalProperties.get(InteropConstant.GP_ENABLE_OPENHIM, "false"));
+			this.baseUrl = globalProperties.get(GP_OPENHIM_BASE_URL);
+			this.suffixUrl = globalProperties.get(GP_OPENHIM_SUFFIX);
+			this.maxBatchSize = Math.max(1,
+			    NumberUtils.toInt(globalProperties.get(GP_OPENHIM_MAX_BATCH_SIZE), DEFAULT_MAX_BATCH_SIZE));
+			this.connectTimeoutMs = Math.max(1,
+			    NumberUtils.toInt(globalProperties.get(GP_OPENHIM_CONNECT_TIMEOUT_MS), DEFAULT_CONNECT_TIMEOUT_MS));
+			this.socketTimeoutMs = Math.max(1,
+			    NumberUtils.toInt(globalProperties.get(GP_OPENHIM_SOCKET_TIMEOUT_MS), DEFAULT_SOCKET_TIMEOUT_MS));
+			log.debug("OpenHIM enabled {} at {}{}", enabled, baseUrl, suffixUrl);
+		}
 	}
 }
@@ -11,19 +11,32 @@ package org.openmrs.module.interop.openhim;
 
 import javax.validation.constraints.NotNull;
 
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import ca.uhn.fhir.context.FhirContext;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IAnyResource;
-import org.openmrs.api.context.Context;
-import org.openmrs.module.interop.InteropConstant;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.openmrs.module.interop.api.EncodedPayload;
 import org.openmrs.module.interop.api.Publisher;
 import org.openmrs.module.interop.openhim.api.OpenhimClient;
+import org.openmrs.module.interop.utils.OauthUtil;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Slf4j
 @Component
 public class OpenhimConnector implements Publisher {
 	
+	private static final int VERIFY_TIMEOUT_MS = 10000;
+	
+	@Autowired
+	private OpenhimConfiguration config;
+	
 	@Override
 	public void publish(@NotNull FhirContext context, @NotNull IAnyResource resource, String serverToken) {
 		log.debug("publish resource with ID {}", resource.getId());
@@ -36,9 +49,21 @@ public class OpenhimConnector implements Publisher {
 			log.error("Resource with UUID {} isn't encoded", encodeResourceString);
 		}
 		try {
-			OpenhimConfiguration config = Context.getRegisteredComponent("interop.openhimConfiguration",
-			    OpenhimConfiguration.class);
-			OpenhimClient.postFhirResource(encodeResourceString, config.getOpenhimServerUrl() + "/Bundle", serverToken);
+			OpenhimClient.postFhirResource(encodeResourceString, config.getOpenhimServerUrl() + "/Bundle", serverToken,
+			    config.getConnectTimeoutMs(), config.getSocketTimeoutMs());
+		}
+		catch (Exception e) {
+			log.error("Unable to post fhir resource", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	@Override
+	public void publish(@NotNull FhirContext context, @NotNull EncodedPayload payload, String serverToken) {
+		log.debug("publish {}", payload);
+		try {
+			OpenhimClient.postFhirResource(payload.getBytes(), config.getOpenhimServerUrl() + "/Bundle", serverToken,
+			    config.getConnectTimeoutMs(), config.getSocketTimeoutMs());
 		}
 		catch (Exception e) {
 			log.error("Unable to post fhir resource", e);
@@ -46,18 +71,112 @@ public class OpenhimConnector implements Publisher {
 		}
 	}
 	
+	/**
+	 * Posts the resources as FHIR transaction bundles of at most
+	 * {@link OpenhimConfiguration#getMaxBatchSize()} payloads to the same endpoint as single resources
+	 */
+	@Override
+	public void publishBatch(@NotNull FhirContext context, @NotNull List<EncodedPayload> payloads, String serverToken) {
+		int maxBatchSize = config.getMaxBatchSize();
+		for (int from = 0; from < payloads.size(); from += maxBatchSize) {
+			List<EncodedPayload> chunk = payloads.subList(from, Math.min(payloads.size(), from + maxBatchSize));
+			if (chunk.size() == 1) {
+				publish(context, chunk.get(0), serverToken);
+				continue;
+			}
+			log.debug("publish transaction of {} resources", chunk.size());
+			try {
+				OpenhimClient.postFhirResource(transactionBundle(context, chunk),
+				    config.getOpenhimServerUrl() + "/Bundle", serverToken, config.getConnectTimeoutMs(),
+				    config.getSocketTimeoutMs());
+			}
+			catch (Exception e) {
+				log.error("Unable to post fhir transaction", e);
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Combines encoded resources into one transaction bundle. The entries of a payload that is itself
+	 * a bundle, e.g. the transaction built for an encounter, are merged in rather than nesting the
+	 * bundle. Other resources are PUT when they have an id, so posting the same transaction again
+	 * doesn't create duplicates. A transaction can't write the same resource twice, so only the last
+	 * of several entries for the same URL is kept.
+	 *
+	 * @param context the FHIR context
+	 * @param payloads the encoded resources, oldest first
+	 * @return the encoded transaction bundle
+	 */
+	static byte[] transactionBundle(FhirContext context, List<EncodedPayload> payloads) {
+		Map<String, Bundle.BundleEntryComponent> entries = new LinkedHashMap<>();
+		for (EncodedPayload payload : payloads) {
+			IAnyResource resource = payload.toResource(context);
+			if (resource instanceof Bundle) {
+				for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+					if (entry.hasResource()) {
+						add(entries, entry);
+					}
+				}
+			} else {
+				Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+				entry.setResource((Resource) resource);
+				add(entries, entry);
+			}
+		}
+		Bundle transaction = new Bundle();
+		transaction.setType(Bundle.BundleType.TRANSACTION);
+		transaction.getEntry().addAll(entries.values());
+		return context.newJsonParser().encodeResourceToString(transaction).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static void add(Map<String, Bundle.BundleEntryComponent> entries, Bundle.BundleEntryComponent entry) {
+		Resource resource = entry.getResource();
+		String id = resource.getIdElement().getIdPart();
+		if (!entry.hasRequest()) {
+			if (id != null) {
+				entry.getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl(resource.fhirType() + "/" + id);
+			} else {
+				entry.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl(resource.fhirType());
+			}
+		}
+		if (entry.getRequest().getMethod() == Bundle.HTTPVerb.POST) {
+			entries.put("POST#" + entries.size(), entry);
+			return;
+		}
+		// the later entry is the newer version, it also moves to the end
+		String key = entry.getRequest().getMethod() + " " + entry.getRequest().getUrl();
+		entries.remove(key);
+		entries.put(key, entry);
+	}
+	
 	@Override
 	public void publish(IAnyResource resource) {
 	}
 	
 	@Override
 	public boolean isEnabled() {
-		return Boolean.parseBoolean(
-		    Context.getAdministrationService().getGlobalProperty(InteropConstant.GP_ENABLE_OPENHIM, "false"));
+		return config.isEnabled();
 	}
 	
+	/**
+	 * Asks the server for its capability statement. Any answer but a server or authentication error
+	 * means deliveries can get through, not every channel routes {@code /metadata}.
+	 */
 	@Override
 	public boolean verifyConnection() {
-		return Publisher.super.verifyConnection();
+		try {
+			int statusCode = OpenhimClient.getStatus(config.getOpenhimServerUrl() + "/metadata",
+			    new OauthUtil().getBasicAuthToken(), VERIFY_TIMEOUT_MS);
+			if (statusCode >= 500 || statusCode == 401 || statusCode == 403) {
+				log.error("OpenHIM answered the connection check with status {}", statusCode);
+				return false;
+			}
+			return true;
+		}
+		catch (Exception e) {
+			log.error("Unable to reach OpenHIM", e);
+			return false;
+		}
 	}
 }
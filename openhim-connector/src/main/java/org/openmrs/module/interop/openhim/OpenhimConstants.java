@@ -11,8 +11,25 @@ package org.openmrs.module.interop.openhim;
 
 public class OpenhimConstants {
 	
+	public static final String GP_OPENHIM_PREFIX = "interop.openhim";
+	
 	public static final String GP_OPENHIM_BASE_URL = "interop.openhimBaseURL";
 	
 	public static final String GP_OPENHIM_SUFFIX = "interop.openhimBaseURLSuffix";
 	
+	public static final String GP_OPENHIM_MAX_BATCH_SIZE = "interop.openhim.maxBatchSize";
+	
+	public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+	
+	public static final String GP_OPENHIM_CONNECT_TIMEOUT_MS = "interop.openhim.connectTimeoutMs";
+	
+	public static final String GP_OPENHIM_SOCKET_TIMEOUT_MS = "interop.openhim.socketTimeoutMs";
+	
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+	
+	/**
+	 * Below the default delivery timeout, so a request gives up before its delivery is failed
+	 */
+	public static final int DEFAULT_SOCKET_TIMEOUT_MS = 25000;
+	
 }
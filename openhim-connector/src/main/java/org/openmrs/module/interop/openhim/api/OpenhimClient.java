@@ -9,33 +9,100 @@
  */
 package org.openmrs.module.interop.openhim.api;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import java.nio.charset.StandardCharsets;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 
+/**
+ * Posts to and checks the OpenHIM channel. All requests share one pooled HTTP client so deliveries
+ * reuse their connections, and every request has a connect and socket timeout, see
+ * {@link org.openmrs.module.interop.openhim.OpenhimConfiguration}.
+ */
+@Slf4j
 public class OpenhimClient {
 	
-	public static void postFhirResource(String fhirResource, String openHimUrl, String oauthToken) throws Exception {
-		HttpClient httpClient = HttpClients.createDefault();
+	private static final int MAX_CONNECTIONS = 20;
+	
+	private static final CloseableHttpClient HTTP_CLIENT = HttpClients.custom().setMaxConnTotal(MAX_CONNECTIONS)
+	        .setMaxConnPerRoute(MAX_CONNECTIONS).build();
+	
+	public static void postFhirResource(String fhirResource, String openHimUrl, String oauthToken, int connectTimeoutMs,
+	        int socketTimeoutMs) throws Exception {
+		postFhirResource(fhirResource.getBytes(StandardCharsets.UTF_8), openHimUrl, oauthToken, connectTimeoutMs,
+		    socketTimeoutMs);
+	}
+	
+	/**
+	 * Sends a GET to check that the server answers
+	 *
+	 * @param url the URL to get
+	 * @param oauthToken the basic auth token
+	 * @param timeoutMs the connect, request and read timeout in milliseconds
+	 * @return the HTTP status code
+	 * @throws Exception if the server doesn't answer in time
+	 */
+	public static int getStatus(String url, String oauthToken, int timeoutMs) throws Exception {
+		HttpGet httpGet = new HttpGet(url);
+		httpGet.setConfig(timeouts(timeoutMs, timeoutMs));
+		httpGet.setHeader("Accept", "application/fhir+json");
+		httpGet.setHeader("Authorization", "Basic " + oauthToken);
+		try (CloseableHttpResponse response = HTTP_CLIENT.execute(httpGet)) {
+			EntityUtils.consumeQuietly(response.getEntity());
+			return response.getStatusLine().getStatusCode();
+		}
+	}
+	
+	/**
+	 * Posts a FHIR resource to the OpenHIM channel
+	 *
+	 * @param fhirResource the encoded resource
+	 * @param openHimUrl the URL to post to
+	 * @param oauthToken the basic auth token
+	 * @param connectTimeoutMs how long to wait for a connection in milliseconds
+	 * @param socketTimeoutMs how long to wait for the answer in milliseconds
+	 * @throws Exception if the post fails or isn't answered in time
+	 */
+	public static void postFhirResource(byte[] fhirResource, String openHimUrl, String oauthToken, int connectTimeoutMs,
+	        int socketTimeoutMs) throws Exception {
 		HttpPost httpPost = new HttpPost(openHimUrl);
+		httpPost.setConfig(timeouts(connectTimeoutMs, socketTimeoutMs));
 		oauthToken = "Basic " + oauthToken;
 		
 		/* Todo: Add Oauth2 logic and append to request headers */
-		StringEntity fhirResourceEntity = new StringEntity(fhirResource);
+		ByteArrayEntity fhirResourceEntity = new ByteArrayEntity(fhirResource);
 		httpPost.setEntity(fhirResourceEntity);
 		httpPost.setHeader("Content-type", "application/json");
 		httpPost.setHeader("Authorization", oauthToken);
 		
-		HttpResponse response = httpClient.execute(httpPost);
-		int statusCode = response.getStatusLine().getStatusCode();
-		if (statusCode >= 200 && statusCode < 300) {
-			System.out.println("FHIR resource was successfully posted to the OpenHIM channel");
-		} else {
-			String responseBody = response.getEntity().toString();
-			System.out.println("An error occurred while posting the FHIR resource to the OpenHIM channel. Status code: "
-			        + statusCode + " Response body: " + responseBody);
+		// the response is consumed and closed either way so its connection goes back to the pool
+		try (CloseableHttpResponse response = HTTP_CLIENT.execute(httpPost)) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode >= 200 && statusCode < 300) {
+				EntityUtils.consumeQuietly(response.getEntity());
+				log.debug("FHIR resource was successfully posted to the OpenHIM channel {}", openHimUrl);
+			} else {
+				String responseBody = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+				throw new HttpResponseException(statusCode,
+				        "An error occurred while posting the FHIR resource to the OpenHIM channel. Response body: "
+				                + responseBody);
+			}
 		}
 	}
+	
+	/**
+	 * Waiting for a pooled connection counts against the connect timeout
+	 */
+	private static RequestConfig timeouts(int connectTimeoutMs, int socketTimeoutMs) {
+		return RequestConfig.custom().setConnectTimeout(connectTimeoutMs).setConnectionRequestTimeout(connectTimeoutMs)
+		        .setSocketTimeout(socketTimeoutMs).build();
+	}
 }
@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.interop.openhim;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+import org.openmrs.module.interop.api.EncodedPayload;
+
+public class OpenhimConnectorTest {
+	
+	private static final FhirContext CONTEXT = FhirContext.forR4();
+	
+	@Test
+	public void shouldMergeBundleEntriesIntoOneTransaction() {
+		Patient patient = new Patient();
+		patient.setId("p1");
+		List<EncodedPayload> payloads = Arrays.asList(EncodedPayload.encode(CONTEXT, patient),
+		    EncodedPayload.encode(CONTEXT, encounterBundle("e1", "o1")),
+		    EncodedPayload.encode(CONTEXT, encounterBundle("e2", "o2")));
+		
+		Bundle transaction = parse(OpenhimConnector.transactionBundle(CONTEXT, payloads));
+		
+		assertThat(transaction.getType(), equalTo(Bundle.BundleType.TRANSACTION));
+		assertThat(requests(transaction), contains("PUT Patient/p1", "PUT Encounter/e1", "PUT Observation/o1",
+		    "PUT Encounter/e2", "PUT Observation/o2"));
+		for (Bundle.BundleEntryComponent entry : transaction.getEntry()) {
+			assertThat(entry.getResource() instanceof Bundle, equalTo(false));
+		}
+	}
+	
+	@Test
+	public void shouldKeepOnlyLatestEntryForSameResource() {
+		Bundle first = encounterBundle("e1", "o1");
+		Bundle second = encounterBundle("e1", "o2");
+		((Encounter) second.getEntryFirstRep().getResource()).setStatus(Encounter.EncounterStatus.FINISHED);
+		
+		Bundle transaction = parse(OpenhimConnector.transactionBundle(CONTEXT,
+		    Arrays.asList(EncodedPayload.encode(CONTEXT, first), EncodedPayload.encode(CONTEXT, second))));
+		
+		assertThat(requests(transaction), contains("PUT Observation/o1", "PUT Encounter/e1", "PUT Observation/o2"));
+		assertThat(((Encounter) transaction.getEntry().get(1).getResource()).getStatus(),
+		    equalTo(Encounter.EncounterStatus.FINISHED));
+	}
+	
+	@Test
+	public void shouldPostResourcesWithoutId() {
+		List<EncodedPayload> payloads = Arrays.asList(EncodedPayload.encode(CONTEXT, new Observation()),
+		    EncodedPayload.encode(CONTEXT, new Observation()));
+		
+		Bundle transaction = parse(OpenhimConnector.transactionBundle(CONTEXT, payloads));
+		
+		assertThat(requests(transaction), contains("POST Observation", "POST Observation"));
+	}
+	
+	private static Bundle encounterBundle(String encounterId, String observationId) {
+		Encounter encounter = new Encounter();
+		encounter.setId(encounterId);
+		Observation observation = new Observation();
+		observation.setId(observationId);
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+		bundle.addEntry().setResource(encounter).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+		        .setUrl("Encounter/" + encounterId);
+		bundle.addEntry().setResource(observation).getRequest().setMethod(Bundle.HTTPVerb.PUT)
+		        .setUrl("Observation/" + observationId);
+		return bundle;
+	}
+	
+	private static Bundle parse(byte[] json) {
+		return CONTEXT.newJsonParser().parseResource(Bundle.class, new String(json, StandardCharsets.UTF_8));
+	}
+	
+	private static List<String> requests(Bundle transaction) {
+		List<String> requests = new ArrayList<>();
+		for (Bundle.BundleEntryComponent entry : transaction.getEntry()) {
+			requests.add(entry.getRequest().getMethod().toCode() + " " + entry.getRequest().getUrl());
+		}
+		return requests;
+	}
+}